@@ -0,0 +1,67 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.zimbra.cs.account.auth.twofactor.ScratchCodes;
+import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth.CredentialConfig;
+
+/**
+ * Stateless {@link ScratchCodes} for accounts without two-factor
+ * authentication. See {@link NoOpTwoFactorAuth}.
+ *
+ * @author BTACTIC
+ */
+public final class NoOpScratchCodes implements ScratchCodes {
+
+    private static final NoOpScratchCodes INSTANCE = new NoOpScratchCodes();
+
+    private NoOpScratchCodes() {
+    }
+
+    public static NoOpScratchCodes getInstance() {
+        return INSTANCE;
+    }
+
+    public void clearData() throws ServiceException {
+    }
+
+    public void authenticate(String scratchCode) throws ServiceException {
+        throw AuthFailedServiceException.AUTH_FAILED("two-factor authentication is not enabled");
+    }
+
+    @Override
+    public void storeCodes(List<String> codes) throws ServiceException {
+    }
+
+    @Override
+    public List<String> generateCodes(CredentialConfig config) throws ServiceException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getCodes() {
+        return Collections.emptyList();
+    }
+}
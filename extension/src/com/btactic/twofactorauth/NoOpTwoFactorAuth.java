@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth;
+
+import com.zimbra.common.auth.twofactor.AuthenticatorConfig;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth;
+import com.btactic.twofactorauth.core.TwoFactorAuthConfig;
+import com.btactic.twofactorauth.credentials.TOTPCredentials;
+
+/**
+ * Stateless {@link TwoFactorAuth} for accounts that have no two-factor
+ * authentication: the feature is unavailable, or nothing is enrolled and
+ * 2FA is neither enabled nor required. A single shared instance is handed
+ * out by the factory so that these logins neither read nor decrypt any 2FA
+ * attribute.
+ *
+ * @author BTACTIC
+ */
+public final class NoOpTwoFactorAuth extends TwoFactorAuth {
+
+    private static final NoOpTwoFactorAuth INSTANCE = new NoOpTwoFactorAuth();
+
+    private NoOpTwoFactorAuth() {
+        super(null, null);
+    }
+
+    public static NoOpTwoFactorAuth getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean twoFactorAuthRequired() throws ServiceException {
+        return false;
+    }
+
+    public boolean twoFactorAuthEnabled() throws ServiceException {
+        return false;
+    }
+
+    public String loadSharedSecret() throws ServiceException {
+        return null;
+    }
+
+    @Override
+    public void clearData() throws ServiceException {
+    }
+
+    @Override
+    public CredentialConfig getCredentialConfig() throws ServiceException {
+        return TwoFactorAuthConfig.getInstance().getCredentialConfig(0);
+    }
+
+    @Override
+    public AuthenticatorConfig getAuthenticatorConfig() throws ServiceException {
+        return TwoFactorAuthConfig.getInstance().getAuthenticatorConfig();
+    }
+
+    @Override
+    public void authenticateTOTP(String code) throws ServiceException {
+        throw AuthFailedServiceException.AUTH_FAILED("two-factor authentication is not enabled");
+    }
+
+    @Override
+    public void authenticate(String code) throws ServiceException {
+        throw AuthFailedServiceException.AUTH_FAILED("two-factor authentication is not enabled");
+    }
+
+    @Override
+    public TOTPCredentials generateCredentials() throws ServiceException {
+        return null;
+    }
+
+    @Override
+    public void enableTwoFactorAuth() throws ServiceException {
+    }
+
+    @Override
+    public void disableTwoFactorAuth(boolean deleteCredentials) throws ServiceException {
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+import com.zimbra.common.auth.twofactor.TwoFactorOptions.HashAlgorithm;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Validates TOTP codes (RFC 6238) without per-call allocations.
+ * Unlike {@code TOTPAuthenticator}, which decodes the secret and creates a
+ * new {@link Mac} for every window it checks, this verifier takes an already
+ * decoded key, reuses one thread-local {@link Mac} per hash algorithm and
+ * checks every allowed window offset in a single pass.
+ *
+ * <p>Instances are immutable and can be shared between threads.
+ *
+ * @author BTACTIC
+ */
+public final class TOTPVerifier {
+
+    private static final int COUNTER_LENGTH = 8;
+    private static final int MAX_MAC_LENGTH = 64;
+
+    private static final Map<HashAlgorithm, ThreadLocal<Mac>> MACS =
+        new EnumMap<HashAlgorithm, ThreadLocal<Mac>>(HashAlgorithm.class);
+
+    private static final ThreadLocal<byte[]> COUNTER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COUNTER_LENGTH];
+        }
+    };
+
+    private static final ThreadLocal<byte[]> HASH_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_MAC_LENGTH];
+        }
+    };
+
+    static {
+        for (final HashAlgorithm algorithm : HashAlgorithm.values()) {
+            MACS.put(algorithm, new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    try {
+                        return Mac.getInstance(getMacAlgorithm(algorithm));
+                    } catch (GeneralSecurityException e) {
+                        ZimbraLog.account.error("unsupported TOTP hash algorithm " + algorithm, e);
+                        return null;
+                    }
+                }
+            });
+        }
+    }
+
+    private final HashAlgorithm hashAlgorithm;
+    private final int numDigits;
+    private final int modulus;
+    private final long windowSize;
+    private final int windowOffset;
+
+    /**
+     * Creates a verifier for the given TOTP parameters.
+     *
+     * @param hashAlgorithm the HMAC hash algorithm
+     * @param numDigits the number of digits in a code
+     * @param windowSize the length of a time step, in seconds
+     * @param windowOffset how many time steps before and after the current one are accepted
+     * @throws IllegalArgumentException if any parameter is out of range
+     */
+    public TOTPVerifier(HashAlgorithm hashAlgorithm, int numDigits, long windowSize, int windowOffset) {
+        if (hashAlgorithm == null) {
+            throw new IllegalArgumentException("Hash algorithm cannot be null");
+        }
+        if (numDigits <= 0 || numDigits > 9) {
+            throw new IllegalArgumentException("Number of code digits must be between 1 and 9, got: " + numDigits);
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive, got: " + windowSize);
+        }
+        if (windowOffset < 0) {
+            throw new IllegalArgumentException("Window offset cannot be negative, got: " + windowOffset);
+        }
+        this.hashAlgorithm = hashAlgorithm;
+        this.numDigits = numDigits;
+        int pow = 1;
+        for (int i = 0; i < numDigits; i++) {
+            pow *= 10;
+        }
+        this.modulus = pow;
+        this.windowSize = windowSize;
+        this.windowOffset = windowOffset;
+    }
+
+    private static String getMacAlgorithm(HashAlgorithm algorithm) {
+        return "Hmac" + algorithm.name();
+    }
+
+    /**
+     * Checks a code against every time step allowed by the window offset.
+     * All steps are always computed so the running time does not reveal
+     * which step matched.
+     *
+     * @param key the decoded shared secret
+     * @param code the code provided by the user
+     * @param timestamp the current time, in seconds since the epoch
+     * @return true if the code matches one of the allowed time steps
+     * @throws ServiceException if the HMAC cannot be computed
+     */
+    public boolean verify(Key key, String code, long timestamp) throws ServiceException {
+        int expected = parseCode(code);
+        if (expected < 0) {
+            return false;
+        }
+        Mac mac = MACS.get(hashAlgorithm).get();
+        if (mac == null) {
+            throw ServiceException.FAILURE("unsupported TOTP hash algorithm " + hashAlgorithm, null);
+        }
+        try {
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw ServiceException.FAILURE("invalid TOTP shared secret", e);
+        }
+        byte[] counterBytes = COUNTER_BUFFER.get();
+        byte[] hash = HASH_BUFFER.get();
+        int macLength = mac.getMacLength();
+        long counter = timestamp / windowSize;
+        boolean matched = false;
+        for (long step = counter - windowOffset; step <= counter + windowOffset; step++) {
+            long value = step;
+            for (int i = COUNTER_LENGTH - 1; i >= 0; i--) {
+                counterBytes[i] = (byte) (value & 0xff);
+                value >>>= 8;
+            }
+            mac.update(counterBytes, 0, COUNTER_LENGTH);
+            try {
+                mac.doFinal(hash, 0);
+            } catch (GeneralSecurityException e) {
+                throw ServiceException.FAILURE("cannot compute TOTP code", e);
+            }
+            int offset = hash[macLength - 1] & 0xf;
+            int binary = ((hash[offset] & 0x7f) << 24)
+                | ((hash[offset + 1] & 0xff) << 16)
+                | ((hash[offset + 2] & 0xff) << 8)
+                | (hash[offset + 3] & 0xff);
+            if (binary % modulus == expected) {
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Parses a code of exactly {@code numDigits} decimal digits.
+     *
+     * @param code the code to parse
+     * @return the numeric value, or -1 if the code is malformed
+     */
+    private int parseCode(String code) {
+        if (code == null || code.length() != numDigits) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < numDigits; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -1,11 +1,22 @@
 package com.btactic.twofactorauth;
 
+import java.util.concurrent.TimeUnit;
+
 import com.zimbra.cs.extension.ZimbraExtension;
 import com.zimbra.soap.SoapServlet;
 import com.zimbra.cs.account.ldap.ChangePasswordListener;
 import com.zimbra.cs.account.ldap.ChangePasswordListener.InternalChangePasswordListenerId;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth.TwoFactorPasswordChange;
+import com.btactic.twofactorauth.app.AppSpecificPasswordUsage;
+import com.btactic.twofactorauth.app.ExpiredAppSpecificPasswordSweeper;
 import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth;
+import com.btactic.twofactorauth.core.ExpiredEmailCodeSweeper;
+import com.btactic.twofactorauth.core.TwoFactorAuthConfig;
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+import com.btactic.twofactorauth.core.TwoFactorAuthTasks;
+import com.btactic.twofactorauth.email.EmailCodeDispatcher;
+import com.btactic.twofactorauth.trusteddevices.ExpiredTrustedDeviceSweeper;
 
 /**
  * This extension registers a custom HTTP handler with <code>ExtensionDispatcherServlet<code>
@@ -35,11 +46,49 @@ public class TwoFactorAuthExtension implements ZimbraExtension {
         ChangePasswordListener.registerInternal(cplId, new TwoFactorPasswordChange());
 
         TwoFactorAuth.setFactory("com.btactic.twofactorauth.ZetaTwoFactorAuth$AuthFactory");
+
+        TwoFactorAuthConfig.refresh();
+        long refreshInterval = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_CONFIG_REFRESH_INTERVAL,
+            TwoFactorAuthConstants.DEFAULT_CONFIG_REFRESH_INTERVAL);
+        TwoFactorAuthTasks.scheduleWithFixedDelay("config-refresh", new Runnable() {
+            @Override
+            public void run() {
+                TwoFactorAuthConfig.refresh();
+            }
+        }, refreshInterval, TimeUnit.SECONDS);
+
+        final AppSpecificPasswordUsage aspUsage = AppSpecificPasswordUsage.getInstance();
+        TwoFactorAuthTasks.scheduleWithFixedDelay("asp-last-used-flush", new Runnable() {
+            @Override
+            public void run() {
+                aspUsage.flush();
+            }
+        }, aspUsage.getFlushInterval(), TimeUnit.SECONDS);
+
+        long statsInterval = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_STATS_LOG_INTERVAL,
+            TwoFactorAuthConstants.DEFAULT_STATS_LOG_INTERVAL);
+        TwoFactorAuthTasks.scheduleWithFixedDelay("stats-log",
+            new TwoFactorAuthStats(), statsInterval, TimeUnit.SECONDS);
+
+        long sweepInterval = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_SWEEP_INTERVAL,
+            TwoFactorAuthConstants.DEFAULT_SWEEP_INTERVAL);
+        TwoFactorAuthTasks.scheduleSweep("asp-expiry-sweep",
+            new ExpiredAppSpecificPasswordSweeper(), sweepInterval, TimeUnit.SECONDS);
+        TwoFactorAuthTasks.scheduleSweep("trusted-device-expiry-sweep",
+            new ExpiredTrustedDeviceSweeper(), sweepInterval, TimeUnit.SECONDS);
+        TwoFactorAuthTasks.scheduleSweep("email-code-expiry-sweep",
+            new ExpiredEmailCodeSweeper(), sweepInterval, TimeUnit.SECONDS);
     }
 
     /**
      * Terminates the extension. Called when the server is shut down.
      */
     public void destroy() {
+        EmailCodeDispatcher.getInstance().shutdown();
+        TwoFactorAuthTasks.shutdown();
+        AppSpecificPasswordUsage.getInstance().flush();
     }
 }
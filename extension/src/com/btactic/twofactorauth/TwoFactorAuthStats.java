@@ -0,0 +1,59 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth;
+
+import com.btactic.twofactorauth.core.AppSpecificPasswordCache;
+import com.btactic.twofactorauth.core.TwoFactorAuthUtils;
+import com.btactic.twofactorauth.core.TwoFactorCredentialCache;
+import com.btactic.twofactorauth.email.EmailCodeDispatcher;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Periodic task writing the counters of the extension's caches to the
+ * account log as a single line, so their effect can be followed on a
+ * running server.
+ *
+ * @author BTACTIC
+ */
+public class TwoFactorAuthStats implements Runnable {
+
+    @Override
+    public void run() {
+        if (!ZimbraLog.account.isInfoEnabled()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("two-factor auth stats:");
+        TwoFactorCredentialCache credentials = TwoFactorCredentialCache.getInstance();
+        sb.append(String.format(" credentialCache[size=%d hits=%d misses=%d ratio=%.3f]",
+            credentials.size(), credentials.getHitCount(), credentials.getMissCount(),
+            credentials.getHitRatio()));
+        sb.append(String.format(" resetCheck[avoidedDecrypts=%d]",
+            TwoFactorAuthUtils.getAvoidedDecryptCount()));
+        AppSpecificPasswordCache appPasswords = AppSpecificPasswordCache.getInstance();
+        sb.append(String.format(" appPasswordCache[accounts=%d hits=%d misses=%d ratio=%.3f]",
+            appPasswords.size(), appPasswords.getHitCount(), appPasswords.getMissCount(),
+            appPasswords.getHitRatio()));
+        EmailCodeDispatcher email = EmailCodeDispatcher.getInstance();
+        sb.append(String.format(" emailQueue[depth=%d sent=%d failed=%d retried=%d dropped=%d avgMs=%d maxMs=%d]",
+            email.getQueueDepth(), email.getSentCount(), email.getFailedCount(), email.getRetryCount(),
+            email.getDroppedCount(), email.getAverageSendLatency(), email.getMaxSendLatency()));
+        ZimbraLog.account.info(sb.toString());
+    }
+}
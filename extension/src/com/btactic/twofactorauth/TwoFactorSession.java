@@ -0,0 +1,152 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth;
+
+import com.btactic.twofactorauth.app.ZetaAppSpecificPasswords;
+import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevices;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+
+/**
+ * Request-scoped holder of the 2FA managers of one account.
+ * The first manager asked for loads and decodes its attributes; every later
+ * request for the same manager within the same SOAP call gets that instance
+ * back, so one call decrypts the secret and scratch codes and decodes the
+ * app-specific passwords at most once.
+ *
+ * <p>The scope is explicit: SOAP handlers call {@link #begin()} on entry and
+ * {@link #end()} in a {@code finally} block, and the session of the scope is
+ * dropped when the outermost handler returns. Outside a scope, for instance
+ * in managers handed out by {@link ZetaTwoFactorAuth.AuthFactory} to the
+ * login code, every {@link #get(Account)} returns a new session owned by its
+ * caller. A {@link ZetaTwoFactorAuth} holds on to its session, so everything
+ * it does during one login, including the scratch-code check in
+ * {@code authenticate()}, shares the same managers. Managers check their attributes against what they loaded and
+ * reload on change, so a shared instance never acts on outdated credentials.
+ *
+ * @author BTACTIC
+ */
+public final class TwoFactorSession {
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<Scope>();
+
+    private final Account account;
+    private ZetaTwoFactorAuth twoFactorAuth;
+    private ZetaScratchCodes scratchCodes;
+    private ZetaAppSpecificPasswords appSpecificPasswords;
+    private ZetaTrustedDevices trustedDevices;
+
+    private TwoFactorSession(Account account) {
+        this.account = account;
+    }
+
+    /**
+     * Opens a session scope on the current thread. Scopes nest; only the
+     * outermost {@link #end()} closes it. Every call must be paired with
+     * {@link #end()} in a {@code finally} block.
+     */
+    public static void begin() {
+        Scope scope = CURRENT.get();
+        if (scope == null) {
+            scope = new Scope();
+            CURRENT.set(scope);
+        }
+        scope.depth++;
+    }
+
+    /**
+     * Closes the session scope of the current thread, releasing its managers
+     * once the outermost scope ends.
+     */
+    public static void end() {
+        Scope scope = CURRENT.get();
+        if (scope != null && --scope.depth <= 0) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Gets the session for an account. Within a scope the session is shared
+     * as long as the same {@link Account} instance is asked for; outside a
+     * scope a new session is returned.
+     *
+     * @param account the account
+     * @return the session for the account
+     */
+    public static TwoFactorSession get(Account account) {
+        Scope scope = CURRENT.get();
+        if (scope == null) {
+            return new TwoFactorSession(account);
+        }
+        if (scope.session == null || scope.session.account != account) {
+            scope.session = new TwoFactorSession(account);
+        }
+        return scope.session;
+    }
+
+    public ZetaTwoFactorAuth getTwoFactorAuth() throws ServiceException {
+        return getTwoFactorAuth(account.getName());
+    }
+
+    public ZetaTwoFactorAuth getTwoFactorAuth(String acctNamePassedIn) throws ServiceException {
+        if (twoFactorAuth == null || !twoFactorAuth.getAcctNamePassedIn().equals(acctNamePassedIn)) {
+            twoFactorAuth = new ZetaTwoFactorAuth(account, acctNamePassedIn, this);
+        }
+        return twoFactorAuth;
+    }
+
+    public ZetaScratchCodes getScratchCodes() throws ServiceException {
+        return getScratchCodes(account.getName());
+    }
+
+    public ZetaScratchCodes getScratchCodes(String acctNamePassedIn) throws ServiceException {
+        if (scratchCodes == null || !scratchCodes.getAcctNamePassedIn().equals(acctNamePassedIn)) {
+            scratchCodes = new ZetaScratchCodes(account, acctNamePassedIn);
+        }
+        return scratchCodes;
+    }
+
+    public ZetaAppSpecificPasswords getAppSpecificPasswords() throws ServiceException {
+        return getAppSpecificPasswords(account.getName());
+    }
+
+    public ZetaAppSpecificPasswords getAppSpecificPasswords(String acctNamePassedIn) throws ServiceException {
+        if (appSpecificPasswords == null || !appSpecificPasswords.getAcctNamePassedIn().equals(acctNamePassedIn)) {
+            appSpecificPasswords = new ZetaAppSpecificPasswords(account, acctNamePassedIn);
+        }
+        return appSpecificPasswords;
+    }
+
+    public ZetaTrustedDevices getTrustedDevices() throws ServiceException {
+        return getTrustedDevices(account.getName());
+    }
+
+    public ZetaTrustedDevices getTrustedDevices(String acctNamePassedIn) throws ServiceException {
+        if (trustedDevices == null || !trustedDevices.getAcctNamePassedIn().equals(acctNamePassedIn)) {
+            trustedDevices = new ZetaTrustedDevices(account, acctNamePassedIn);
+        }
+        return trustedDevices;
+    }
+
+    private static final class Scope {
+        private int depth;
+        private TwoFactorSession session;
+    }
+}
@@ -21,18 +21,26 @@ package com.btactic.twofactorauth;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth.CredentialConfig;
 import com.zimbra.cs.account.auth.twofactor.ScratchCodes;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.DataSource;
 import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.btactic.twofactorauth.core.AccountLocks;
+import com.btactic.twofactorauth.core.AttributeChangeSet;
 import com.btactic.twofactorauth.core.BaseTwoFactorAuthComponent;
+import com.btactic.twofactorauth.core.HashedScratchCodes;
 import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
 import com.btactic.twofactorauth.core.TwoFactorAuthUtils;
+import com.btactic.twofactorauth.core.TwoFactorCredentialCache;
+import com.btactic.twofactorauth.core.TwoFactorCredentialCache.CachedCredentials;
 import com.btactic.twofactorauth.credentials.CredentialGenerator;
 import com.btactic.twofactorauth.exception.TwoFactorCodeInvalidException;
 import com.zimbra.cs.account.ldap.LdapLockoutPolicy;
@@ -46,7 +54,14 @@ import com.zimbra.cs.account.Provisioning;
  *
  */
 public class ZetaScratchCodes extends BaseTwoFactorAuthComponent implements ScratchCodes {
+    // Conditional writes retried after losing to a concurrent change
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
     private List<String> scratchCodes;
+    // Stored value the in-memory codes were loaded from or last written as
+    private String loadedCodes;
+    // Parsed loadedCodes when they are hashed, null otherwise
+    private HashedScratchCodes hashedCodes;
     boolean hasStoredScratchCodes;
 
     public ZetaScratchCodes(Account account) throws ServiceException {
@@ -66,58 +81,125 @@ public class ZetaScratchCodes extends BaseTwoFactorAuthComponent implements Scra
     }
 
     public CredentialConfig getCredentialConfig() throws ServiceException {
-        CredentialConfig config = new CredentialConfig()
-        .setSecretLength(getGlobalConfig().getTwoFactorAuthSecretLength())
-        .setScratchCodeLength(getGlobalConfig().getTwoFactorScratchCodeLength())
-        .setEncoding(getSecretEncoding())
-        .setScratchCodeEncoding(getScratchCodeEncoding())
-        .setNumScratchCodes(account.getCOS().getTwoFactorAuthNumScratchCodes());
-        return config;
+        return getTwoFactorAuthConfig().getCredentialConfig(
+            account.getCOS().getTwoFactorAuthNumScratchCodes());
     }
 
     private List<String> loadScratchCodes() throws ServiceException {
-        String encryptedCodes = account.getTwoFactorAuthScratchCodes();
-        if (Strings.isNullOrEmpty(encryptedCodes)) {
-            hasStoredScratchCodes = false;
-            return new ArrayList<String>();
+        setLoadedCodes(account.getTwoFactorAuthScratchCodes());
+        CachedCredentials credentials = TwoFactorCredentialCache.getInstance().get(account);
+        hasStoredScratchCodes = credentials.hasStoredScratchCodes();
+        // The cached list is shared, so work on a private copy
+        return new ArrayList<String>(credentials.getScratchCodes());
+    }
+
+    /**
+     * Gets the in-memory scratch codes, reloading them if the stored codes
+     * were changed by someone else since they were loaded. This keeps an
+     * instance shared through {@link TwoFactorSession} consistent.
+     */
+    private List<String> codes() throws ServiceException {
+        if (scratchCodes != null
+                && !Objects.equal(loadedCodes, account.getTwoFactorAuthScratchCodes())) {
+            scratchCodes = loadScratchCodes();
         }
+        return scratchCodes;
+    }
 
-        hasStoredScratchCodes = true;
-        String commaSeparatedCodes = decrypt(account, encryptedCodes);
-        String[] codes = commaSeparatedCodes.split(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR);
+    private void setLoadedCodes(String stored) throws ServiceException {
+        loadedCodes = stored;
+        hashedCodes = HashedScratchCodes.isHashed(stored) ? HashedScratchCodes.parse(stored) : null;
+    }
 
-        List<String> codeList = new ArrayList<String>(codes.length);
-        for (String code : codes) {
-            codeList.add(code);
+    /**
+     * Gets the value to store for a list of scratch codes: salted hashes when
+     * hashed scratch codes are enabled, the encrypted list otherwise.
+     *
+     * @param account the account owning the codes
+     * @param codes the plain codes
+     * @return the value for {@code zimbraTwoFactorAuthScratchCodes}
+     * @throws ServiceException if the codes cannot be hashed or encrypted
+     */
+    static String toStoredValue(Account account, List<String> codes) throws ServiceException {
+        if (HashedScratchCodes.isEnabled()) {
+            return HashedScratchCodes.hash(account, codes);
         }
-        return codeList;
+        String codeString = Joiner.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR).join(codes);
+        return DataSource.encryptData(account.getId(), codeString);
     }
 
     @Override
     public void storeCodes(List<String> codes) throws ServiceException {
-        String codeString = Joiner.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR).join(codes);
-        String encrypted = encrypt(codeString);
-        account.setTwoFactorAuthScratchCodes(encrypted);
+        String stored = toStoredValue(account, codes);
+        account.setTwoFactorAuthScratchCodes(stored);
+        TwoFactorCredentialCache.getInstance().invalidate(account);
+        if (codes == scratchCodes) {
+            // Hashed codes stay readable here until this instance reloads
+            setLoadedCodes(stored);
+        }
     }
 
-    private void storeCodes() throws ServiceException {
-        if (scratchCodes != null) {
-            storeCodes(scratchCodes);
+    /**
+     * Replaces the stored scratch codes only if they still hold the expected
+     * value. The old value is deleted and the new one added in one LDAP
+     * modify, which fails if another node changed the codes in between.
+     *
+     * @param expected the value the change is based on, null if none is stored
+     * @param stored the new value
+     * @throws ServiceException if the modify fails
+     */
+    private void replaceStoredCodes(String expected, String stored) throws ServiceException {
+        AttributeChangeSet changes = new AttributeChangeSet();
+        if (expected != null) {
+            changes.remove(Provisioning.A_zimbraTwoFactorAuthScratchCodes, expected);
         }
+        changes.add(Provisioning.A_zimbraTwoFactorAuthScratchCodes, stored).apply(account);
+        TwoFactorCredentialCache.getInstance().invalidate(account);
+    }
+
+    /**
+     * Handles a failed conditional write. The account is reloaded; if the
+     * stored codes changed the caller retries against them, otherwise the
+     * failure was not a conflict and is rethrown.
+     */
+    private void reloadAfterConflict(String expected, ServiceException e, int attempt)
+            throws ServiceException {
+        Provisioning.getInstance().reload(account);
+        TwoFactorCredentialCache.getInstance().invalidate(account);
+        if (attempt >= MAX_WRITE_ATTEMPTS
+                || Objects.equal(expected, account.getTwoFactorAuthScratchCodes())) {
+            throw e;
+        }
+        ZimbraLog.account.debug("scratch codes of account %s changed concurrently, retrying", account.getName());
     }
 
     @Override
     public List<String> generateCodes(CredentialConfig config) throws ServiceException {
         ZimbraLog.account.debug("invalidating current scratch codes");
-        List<String> newCodes = new CredentialGenerator(config).generateScratchCodes();
-        scratchCodes.clear();
-        scratchCodes.addAll(newCodes);
-        storeCodes();
-        return scratchCodes;
-
+        Lock lock = AccountLocks.get(account);
+        lock.lock();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                List<String> current = codes();
+                String expected = loadedCodes;
+                List<String> newCodes = new CredentialGenerator(config).generateScratchCodes();
+                String stored = toStoredValue(account, newCodes);
+                try {
+                    replaceStoredCodes(expected, stored);
+                } catch (ServiceException e) {
+                    reloadAfterConflict(expected, e, attempt);
+                    continue;
+                }
+                current.clear();
+                current.addAll(newCodes);
+                setLoadedCodes(stored);
+                return scratchCodes;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-
     public void authenticate(String scratchCode) throws ServiceException {
         if (!checkScratchCodes(scratchCode)) {
             failedLogin();
@@ -141,57 +223,76 @@ public class ZetaScratchCodes extends BaseTwoFactorAuthComponent implements Scra
 
     /**
      * Checks if the provided scratch code is valid and invalidates it if found.
-     * Uses Iterator for efficient removal to avoid ConcurrentModificationException
-     * and improve performance.
+     * Hashed codes are checked with one hash and a set lookup, and only the
+     * used hash is dropped from the stored value. An encrypted list is
+     * scanned and, once a code is used, stored again in the current format.
+     *
+     * <p>The check runs under the account's lock and the write is
+     * conditional on the value the check was based on, so a code presented
+     * by two concurrent logins, on this node or another, is accepted once.
      *
      * @param scratchCode the scratch code to validate
      * @return true if the code was valid and has been invalidated
      * @throws ServiceException if storage operation fails
      */
     public boolean checkScratchCodes(String scratchCode) throws ServiceException {
-        java.util.Iterator<String> iterator = scratchCodes.iterator();
-        while (iterator.hasNext()) {
-            String code = iterator.next();
-            if (code.equals(scratchCode)) {
-                iterator.remove(); // O(1) removal using iterator
-                storeCodes(); // Persist the change
+        Lock lock = AccountLocks.get(account);
+        lock.lock();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                List<String> current = codes();
+                String expected = loadedCodes;
+                String remaining;
+                if (hashedCodes != null) {
+                    String hash = hashedCodes.find(account, scratchCode);
+                    if (hash == null) {
+                        return false;
+                    }
+                    remaining = hashedCodes.without(hash).encode();
+                } else if (current.contains(scratchCode)) {
+                    List<String> left = new ArrayList<String>(current);
+                    left.remove(scratchCode);
+                    remaining = toStoredValue(account, left);
+                } else {
+                    return false;
+                }
+                try {
+                    replaceStoredCodes(expected, remaining);
+                } catch (ServiceException e) {
+                    reloadAfterConflict(expected, e, attempt);
+                    continue;
+                }
+                current.remove(scratchCode);
+                setLoadedCodes(remaining);
                 ZimbraLog.account.info("Scratch code validated and invalidated for account: " + account.getName());
                 return true;
             }
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     @Override
     public List<String> getCodes() {
-        return scratchCodes;
+        try {
+            return codes();
+        } catch (ServiceException e) {
+            ZimbraLog.account.warn("cannot reload scratch codes for account " + account.getName(), e);
+            return scratchCodes;
+        }
     }
 
     public List<String> generateNewScratchCodes() throws ServiceException {
-        ZimbraLog.account.debug("invalidating current scratch codes");
-        CredentialConfig config = getCredentialConfig();
-        List<String> newCodes = new CredentialGenerator(config).generateScratchCodes();
-        scratchCodes.clear();
-        scratchCodes.addAll(newCodes);
-        storeScratchCodes();
-        return scratchCodes;
-
-    }
-
-    private void storeScratchCodes(List<String> codes) throws ServiceException {
-        String codeString = Joiner.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR).join(codes);
-        String encrypted = encrypt(codeString);
-        account.setTwoFactorAuthScratchCodes(encrypted);
-    }
-
-    private void storeScratchCodes() throws ServiceException {
-        if (scratchCodes != null) {
-            storeScratchCodes(scratchCodes);
-        }
+        return generateCodes(getCredentialConfig());
     }
 
     public void deleteCredentials() throws ServiceException {
         account.setTwoFactorAuthScratchCodes(null);
+        TwoFactorCredentialCache.getInstance().invalidate(account);
+        setLoadedCodes(null);
+        if (scratchCodes != null) {
+            scratchCodes.clear();
+        }
     }
 
     private void failedLogin() throws ServiceException {
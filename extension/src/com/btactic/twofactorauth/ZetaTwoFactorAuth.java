@@ -20,16 +20,17 @@
 package com.btactic.twofactorauth;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.security.SecureRandom;
 
+import javax.crypto.spec.SecretKeySpec;
+
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.zimbra.common.auth.twofactor.AuthenticatorConfig;
-import com.zimbra.common.auth.twofactor.TwoFactorOptions.CodeLength;
-import com.zimbra.common.auth.twofactor.TwoFactorOptions.HashAlgorithm;
 import com.zimbra.cs.account.auth.twofactor.AppSpecificPasswords;
 import com.zimbra.cs.account.auth.twofactor.TrustedDevices;
 import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth;
@@ -37,29 +38,36 @@ import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth.CredentialConfig;
 import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth.Factory;
 import com.zimbra.cs.account.auth.twofactor.ScratchCodes;
 import com.zimbra.common.auth.twofactor.TwoFactorOptions.Encoding;
-import com.zimbra.common.auth.twofactor.TOTPAuthenticator;
+import com.zimbra.common.account.ProvisioningConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.btactic.twofactorauth.app.AppSpecificPasswordUsage;
+import com.btactic.twofactorauth.app.NoOpAppSpecificPasswords;
 import com.btactic.twofactorauth.app.ZetaAppSpecificPassword;
-import com.btactic.twofactorauth.app.ZetaAppSpecificPasswords;
+import com.btactic.twofactorauth.core.AppSpecificPasswordCache;
+import com.btactic.twofactorauth.core.AttributeChangeSet;
 import com.btactic.twofactorauth.core.EmailCodeParser;
 import com.btactic.twofactorauth.core.EmailCodeParser.EmailCodeData;
+import com.btactic.twofactorauth.core.HashedScratchCodes;
+import com.btactic.twofactorauth.core.TwoFactorAuthConfig;
 import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
 import com.btactic.twofactorauth.core.TwoFactorAuthUtils;
-import com.btactic.twofactorauth.credentials.CredentialGenerator;
+import com.btactic.twofactorauth.core.TwoFactorCredentialCache;
+import com.btactic.twofactorauth.core.TwoFactorCredentialCache.CachedCredentials;
+import com.btactic.twofactorauth.credentials.CredentialPool;
+import com.btactic.twofactorauth.credentials.PendingEnrollments;
 import com.btactic.twofactorauth.credentials.TOTPCredentials;
 import com.btactic.twofactorauth.exception.TwoFactorCodeExpiredException;
 import com.btactic.twofactorauth.exception.TwoFactorCodeInvalidException;
 import com.btactic.twofactorauth.exception.TwoFactorCredentialException;
 import com.btactic.twofactorauth.exception.TwoFactorCredentialException.CredentialErrorType;
-import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevices;
 import com.btactic.twofactorauth.ZetaScratchCodes;
-import com.zimbra.cs.account.Config;
 import com.zimbra.cs.account.DataSource;
 import com.zimbra.cs.account.Provisioning;
+import com.btactic.twofactorauth.trusteddevices.NoOpTrustedDevices;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevice;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDeviceToken;
 import com.zimbra.cs.account.ldap.ChangePasswordListener;
@@ -75,6 +83,8 @@ import com.zimbra.cs.account.ldap.LdapLockoutPolicy;
 public class ZetaTwoFactorAuth extends TwoFactorAuth {
     private final Account account;
     private final String acctNamePassedIn;
+    // Session whose managers this instance shares, kept for its whole life
+    private final TwoFactorSession session;
     private String secret;
     private List<String> scratchCodes;
     boolean hasStoredSecret;
@@ -84,17 +94,18 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
     private static final char[] NUMERIC_CHARS = "0123456789".toCharArray();
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
-    // Cached config for better performance
-    private AuthenticatorConfig authenticatorConfig;
-    private Config globalConfig;
-    private Encoding secretEncoding;
-    private Encoding scratchEncoding;
+    // Verifier built from the configuration snapshot it belongs to
+    private static volatile VerifierHolder verifierHolder;
 
     public ZetaTwoFactorAuth(Account account) throws ServiceException {
         this(account, account == null ? null : account.getName());
     }
 
     public ZetaTwoFactorAuth(Account account, String acctNamePassedIn) throws ServiceException {
+        this(account, acctNamePassedIn, null);
+    }
+
+    ZetaTwoFactorAuth(Account account, String acctNamePassedIn, TwoFactorSession session) throws ServiceException {
         super(account, acctNamePassedIn);
         if (account == null) {
             throw new IllegalArgumentException("Account cannot be null");
@@ -104,43 +115,23 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         }
         this.account = account;
         this.acctNamePassedIn = acctNamePassedIn;
+        this.session = session != null ? session : TwoFactorSession.get(account);
         TwoFactorAuthUtils.disableTwoFactorAuthIfNecessary(account);
         if (account.isFeatureTwoFactorAuthAvailable()) {
             secret = loadSharedSecret();
         }
     }
 
-    private Config getGlobalConfig() throws ServiceException {
-        if (globalConfig == null) {
-            globalConfig = Provisioning.getInstance().getConfig();
-        }
-        return globalConfig;
+    public String getAcctNamePassedIn() {
+        return acctNamePassedIn;
     }
 
-    private Encoding getSecretEncoding() throws ServiceException {
-        if (secretEncoding == null) {
-            try {
-                String enc = getGlobalConfig().getTwoFactorAuthSecretEncodingAsString();
-                secretEncoding = Encoding.valueOf(enc);
-            } catch (IllegalArgumentException e) {
-                ZimbraLog.account.warn("Invalid secret encoding, defaulting to BASE32", e);
-                secretEncoding = Encoding.BASE32;
-            }
-        }
-        return secretEncoding;
+    private static TwoFactorAuthConfig getConfig() throws ServiceException {
+        return TwoFactorAuthConfig.getInstance();
     }
 
-    private Encoding getScratchCodeEncoding() throws ServiceException {
-        if (scratchEncoding == null) {
-            try {
-                String enc = getGlobalConfig().getTwoFactorAuthScratchCodeEncodingAsString();
-                scratchEncoding = Encoding.valueOf(enc);
-            } catch (IllegalArgumentException e) {
-                ZimbraLog.account.warn("Invalid scratch code encoding, defaulting to BASE32", e);
-                scratchEncoding = Encoding.BASE32;
-            }
-        }
-        return scratchEncoding;
+    private Encoding getSecretEncoding() throws ServiceException {
+        return getConfig().getSecretEncoding();
     }
 
     private String encrypt(String data) throws ServiceException {
@@ -151,65 +142,98 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         return DataSource.decryptData(account.getId(), encrypted);
     }
 
+    /**
+     * Factory used by the server. Accounts without two-factor authentication
+     * get the shared no-op managers; everyone else gets the managers of the
+     * current {@link TwoFactorSession}, which is a new one unless a SOAP
+     * handler of this extension opened a scope. A {@link ZetaTwoFactorAuth}
+     * keeps the session it came from, so the scratch codes and trusted
+     * devices it works with during a login are loaded once.
+     */
     public static class AuthFactory implements Factory {
 
         @Override
         public TwoFactorAuth getTwoFactorAuth(Account account, String acctNamePassedIn) throws ServiceException {
-            return new ZetaTwoFactorAuth(account, acctNamePassedIn);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpTwoFactorAuth.getInstance();
+            }
+            return TwoFactorSession.get(account).getTwoFactorAuth(acctNamePassedIn);
         }
 
         @Override
         public TwoFactorAuth getTwoFactorAuth(Account account) throws ServiceException {
-            return new ZetaTwoFactorAuth(account);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpTwoFactorAuth.getInstance();
+            }
+            return TwoFactorSession.get(account).getTwoFactorAuth();
         }
 
         @Override
         public TrustedDevices getTrustedDevices(Account account) throws ServiceException {
-            return new ZetaTrustedDevices(account);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpTrustedDevices.getInstance();
+            }
+            return TwoFactorSession.get(account).getTrustedDevices();
         }
 
         @Override
         public TrustedDevices getTrustedDevices(Account account, String acctNamePassedIn) throws ServiceException {
-            return new ZetaTrustedDevices(account, acctNamePassedIn);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpTrustedDevices.getInstance();
+            }
+            return TwoFactorSession.get(account).getTrustedDevices(acctNamePassedIn);
         }
 
         @Override
         public AppSpecificPasswords getAppSpecificPasswords(Account account) throws ServiceException {
-            return new ZetaAppSpecificPasswords(account);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpAppSpecificPasswords.getInstance();
+            }
+            return TwoFactorSession.get(account).getAppSpecificPasswords();
         }
 
         @Override
         public AppSpecificPasswords getAppSpecificPasswords(Account account, String acctNamePassedIn) throws ServiceException {
-            return new ZetaAppSpecificPasswords(account, acctNamePassedIn);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpAppSpecificPasswords.getInstance();
+            }
+            return TwoFactorSession.get(account).getAppSpecificPasswords(acctNamePassedIn);
         }
 
         @Override
         public ScratchCodes getScratchCodes(Account account) throws ServiceException {
-            return new ZetaScratchCodes(account);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpScratchCodes.getInstance();
+            }
+            return TwoFactorSession.get(account).getScratchCodes();
         }
 
         @Override
         public ScratchCodes getScratchCodes(Account account, String acctNamePassedIn) throws ServiceException {
-            return new ZetaScratchCodes(account, acctNamePassedIn);
+            if (TwoFactorAuthUtils.isTwoFactorAuthInactive(account)) {
+                return NoOpScratchCodes.getInstance();
+            }
+            return TwoFactorSession.get(account).getScratchCodes(acctNamePassedIn);
         }
 
     }
 
 
     public void clear2FAData() throws ServiceException {
-        account.setTwoFactorAuthEnabled(false);
-        delete2FACredentials();
+        beginTransition()
+            .disable()
+            .unset(Provisioning.A_zimbraTwoFactorAuthSecret)
+            .commit();
     }
 
     @Override
     public void clearData() throws ServiceException {
         clear2FAData();
-        ZetaScratchCodes scratchCodesManager = new ZetaScratchCodes(account);
-        scratchCodesManager.clearData();
-        ZetaAppSpecificPasswords appSpecificPasswordsManager = new ZetaAppSpecificPasswords(account);
-        appSpecificPasswordsManager.clearData();
-        ZetaTrustedDevices trustedDevicesManager = new ZetaTrustedDevices(account);
-        trustedDevicesManager.clearData();
+        TwoFactorCredentialCache.getInstance().invalidate(account);
+        PendingEnrollments.getInstance().remove(account);
+        session.getScratchCodes().clearData();
+        session.getAppSpecificPasswords().clearData();
+        session.getTrustedDevices().clearData();
     }
 
     /**
@@ -247,18 +271,18 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         }
     }
 
-    private void storeSharedSecret(String secret) throws ServiceException {
-        String encrypted = encrypt(secret);
-        account.setTwoFactorAuthSecret(encrypted);
-    }
-
+    /**
+     * Loads the shared secret, reusing the decrypted value cached for this
+     * account as long as the stored ciphertext has not changed.
+     *
+     * @return the shared secret, or null if none is stored
+     * @throws ServiceException if the stored secret is malformed or cannot be decrypted
+     */
     public String loadSharedSecret() throws ServiceException {
-        String encryptedSecret = account.getTwoFactorAuthSecret();
-        hasStoredSecret = encryptedSecret != null;
-        if (encryptedSecret != null) {
-            String decrypted = decrypt(account, encryptedSecret);
-            String[] parts = decrypted.split(TwoFactorAuthConstants.SECRET_SEPARATOR);
-            if (parts.length != TwoFactorAuthConstants.SECRET_PARTS_COUNT) {
+        CachedCredentials credentials = TwoFactorCredentialCache.getInstance().get(account);
+        hasStoredSecret = credentials.hasStoredSecret();
+        if (hasStoredSecret) {
+            if (credentials.getSecretPartsCount() != TwoFactorAuthConstants.SECRET_PARTS_COUNT) {
                 throw new TwoFactorCredentialException(
                     TwoFactorAuthConstants.ERROR_INVALID_SECRET_FORMAT,
                     account.getName(),
@@ -267,64 +291,30 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
                     CredentialErrorType.INVALID_FORMAT
                 );
             }
-            return parts[TwoFactorAuthConstants.SECRET_VALUE_INDEX];
+            return credentials.getSecret();
         } else {
             return null;
         }
     }
 
-    private void storeScratchCodes(List<String> codes) throws ServiceException {
-        String codeString = Joiner.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR).join(codes);
-        String encrypted = encrypt(codeString);
-        account.setTwoFactorAuthScratchCodes(encrypted);
-    }
-
-    private void storeScratchCodes() throws ServiceException {
-        if (scratchCodes != null) {
-            storeScratchCodes(scratchCodes);
-        }
-    }
-
 
     public TOTPCredentials generateNewCredentials() throws ServiceException {
-        CredentialConfig config = getCredentialConfig();
-        TOTPCredentials credentials = new CredentialGenerator(config).generateCredentials();
-        return credentials;
+        return CredentialPool.getInstance().take(getCredentialConfig());
     }
 
     private void storeCredentials(TOTPCredentials credentials) throws ServiceException {
-        String secret = String.format("%s|%s", credentials.getSecret(), credentials.getTimestamp());
-        storeSharedSecret(secret);
-        storeScratchCodes(credentials.getScratchCodes());
+        beginTransition().storeCredentials(credentials).commit();
     }
 
 
     @Override
     public CredentialConfig getCredentialConfig() throws ServiceException {
-        CredentialConfig config = new CredentialConfig()
-        .setSecretLength(getGlobalConfig().getTwoFactorAuthSecretLength())
-        .setScratchCodeLength(getGlobalConfig().getTwoFactorScratchCodeLength())
-        .setEncoding(getSecretEncoding())
-        .setScratchCodeEncoding(getScratchCodeEncoding())
-        .setNumScratchCodes(account.getCOS().getTwoFactorAuthNumScratchCodes());
-        return config;
+        return getConfig().getCredentialConfig(account.getCOS().getTwoFactorAuthNumScratchCodes());
     }
 
     @Override
     public AuthenticatorConfig getAuthenticatorConfig() throws ServiceException {
-        // Cache the config for better performance
-        if (authenticatorConfig == null) {
-            authenticatorConfig = new AuthenticatorConfig();
-            String algo = getGlobalConfig().getTwoFactorAuthHashAlgorithmAsString();
-            HashAlgorithm algorithm = HashAlgorithm.valueOf(algo);
-            authenticatorConfig.setHashAlgorithm(algorithm);
-            int codeLength = getGlobalConfig().getTwoFactorCodeLength();
-            CodeLength numDigits = CodeLength.valueOf(codeLength);
-            authenticatorConfig.setNumCodeDigits(numDigits);
-            authenticatorConfig.setWindowSize(getGlobalConfig().getTwoFactorTimeWindowLength() / 1000);
-            authenticatorConfig.allowedWindowOffset(getGlobalConfig().getTwoFactorTimeWindowOffset());
-        }
-        return authenticatorConfig;
+        return getConfig().getAuthenticatorConfig();
     }
 
     /**
@@ -342,41 +332,103 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         return true;
     }
 
+    /**
+     * Gets the verifier for the current configuration snapshot. A new one is
+     * only built when the snapshot has been replaced.
+     */
+    private static TOTPVerifier getTOTPVerifier() throws ServiceException {
+        TwoFactorAuthConfig config = getConfig();
+        VerifierHolder holder = verifierHolder;
+        if (holder == null || holder.config != config) {
+            holder = new VerifierHolder(config, new TOTPVerifier(
+                config.getHashAlgorithm(),
+                config.getTOTPCodeLength(),
+                config.getWindowSize(),
+                config.getWindowOffset()));
+            verifierHolder = holder;
+        }
+        return holder.verifier;
+    }
+
+    private static final class VerifierHolder {
+        private final TwoFactorAuthConfig config;
+        private final TOTPVerifier verifier;
+
+        private VerifierHolder(TwoFactorAuthConfig config, TOTPVerifier verifier) {
+            this.config = config;
+            this.verifier = verifier;
+        }
+    }
+
+    /**
+     * Checks a TOTP code against the stored secret.
+     * The secret is decoded once per cached credential entry and verified
+     * with a reusable {@link TOTPVerifier} instead of a new TOTPAuthenticator.
+     *
+     * @param code the TOTP code provided by the user
+     * @return true if the code is valid for the current time window
+     * @throws ServiceException if the code cannot be verified
+     */
     private boolean checkTOTPCode(String code) throws ServiceException {
+        CachedCredentials credentials = TwoFactorCredentialCache.getInstance().get(account);
+        return checkTOTPCode(credentials.getSecretKey(getSecretEncoding()), code);
+    }
+
+    private boolean checkTOTPCode(SecretKeySpec key, String code) throws ServiceException {
+        if (key == null) {
+            return false;
+        }
         long curTime = System.currentTimeMillis() / 1000;
-        AuthenticatorConfig config = getAuthenticatorConfig();
-        TOTPAuthenticator auth = new TOTPAuthenticator(config);
-        return auth.validateCode(secret, curTime, code, getSecretEncoding());
+        return getTOTPVerifier().verify(key, code, curTime);
     }
 
     private boolean isEmailCode(String code) throws ServiceException {
-      int emailCodeLength = getGlobalConfig().getTwoFactorAuthEmailCodeLength();
+      int emailCodeLength = getConfig().getEmailCodeLength();
       return code.length() == emailCodeLength;
     }
 
     private Boolean isScratchCode(String code) throws ServiceException {
-      int scratchCodeLength = getGlobalConfig().getTwoFactorScratchCodeLength();
+      int scratchCodeLength = getConfig().getScratchCodeLength();
       return code.length() == scratchCodeLength;
     }
 
     private Boolean isTOTPCode(String code) throws ServiceException {
-      int totpLength = getGlobalConfig().getTwoFactorCodeLength();
+      int totpLength = getConfig().getTOTPCodeLength();
       return code.length() == totpLength;
     }
 
     @Override
     public void authenticateTOTP(String code) throws ServiceException {
         if (!checkTOTPCode(code)) {
-            ZimbraLog.account.error("invalid TOTP code for account: " + account.getName());
-            throw new TwoFactorCodeInvalidException(
-                account.getName(),
-                acctNamePassedIn,
-                "TOTP",
-                "code does not match expected value"
-            );
+            invalidTOTPCode();
+        }
+    }
+
+    /**
+     * Checks a TOTP code against credentials that have not been stored yet,
+     * such as a pending enrollment.
+     *
+     * @param code the TOTP code provided by the user
+     * @param credentials the credentials to check against
+     * @throws ServiceException if the code is invalid
+     */
+    public void authenticateTOTP(String code, TOTPCredentials credentials) throws ServiceException {
+        SecretKeySpec key = TwoFactorCredentialCache.toSecretKey(credentials.getSecret(), getSecretEncoding());
+        if (!checkTOTPCode(key, code)) {
+            invalidTOTPCode();
         }
     }
 
+    private void invalidTOTPCode() throws ServiceException {
+        ZimbraLog.account.error("invalid TOTP code for account: " + account.getName());
+        throw new TwoFactorCodeInvalidException(
+            account.getName(),
+            acctNamePassedIn,
+            "TOTP",
+            "code does not match expected value"
+        );
+    }
+
     @Override
     public void authenticate(String code) throws ServiceException {
         if (code == null) {
@@ -426,7 +478,7 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
             success = checkEmailCode(code);
         } else if (scratchCandidate) {
             codeType = "Scratch";
-            ZetaScratchCodes scratchCodesManager = new ZetaScratchCodes(account);
+            ZetaScratchCodes scratchCodesManager = session.getScratchCodes(acctNamePassedIn);
             success = scratchCodesManager.checkScratchCodes(code);
         }
 
@@ -458,13 +510,23 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
 
     @Override
     public void enableTwoFactorAuth() throws ServiceException {
-        ZimbraLog.account.info("Enabling 2FA for account: " + account.getName());
-        account.setTwoFactorAuthEnabled(true);
+        beginTransition().enable().commit();
     }
 
     // What 2FA method is enabled by user: app and/or email
     public void addEnabledMethod(String twoFactorAuthMethodEnabled) throws ServiceException {
-        account.addTwoFactorAuthMethodEnabled(twoFactorAuthMethodEnabled);
+        beginTransition().addMethod(twoFactorAuthMethodEnabled).commit();
+    }
+
+    /**
+     * Starts collecting the attribute changes of a 2FA lifecycle transition,
+     * such as enabling or disabling a method, so they can be written in one
+     * LDAP modify.
+     *
+     * @return a new, empty transition for this account
+     */
+    public Transition beginTransition() {
+        return new Transition();
     }
 
     /**
@@ -539,40 +601,30 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         return enabledMethods.length;
     }
 
-    private void delete2FACredentials() throws ServiceException {
-        account.setTwoFactorAuthSecret(null);
-    }
-
-    private void deleteCredentials() throws ServiceException {
-        delete2FACredentials();
-        ZetaScratchCodes scratchCodesManager = new ZetaScratchCodes(account);
-        scratchCodesManager.deleteCredentials();
-    }
-
-    public void smartUnsetZimbraTwoFactorAuthEnabled() throws ServiceException {
+    public void smartUnsetZimbraTwoFactorAuthEnabled(Transition transition) throws ServiceException {
         // We assume specific enabled attributes based on methods have been removed previously
         // Only unset if there are no remaining methods.
 
-        if (enabledTwoFactorAuthMethodsCount() == 0) {
+        if (transition.getRemainingMethods().isEmpty()) {
           if (account.isTwoFactorAuthEnabled()) {
-              account.setTwoFactorAuthEnabled(false);
+              transition.disable();
           } else {
               ZimbraLog.account.info("two-factor authentication already disabled");
           }
         }
     }
 
-    public void smartSetPrefPrimaryTwoFactorAuthMethod() throws ServiceException {
+    public void smartSetPrefPrimaryTwoFactorAuthMethod(Transition transition) throws ServiceException {
         // Only to be called from disableTwoFactorAuthApp and disableTwoFactorAuthEmail functions
         // We assume specific enabled attributes based on methods have been removed previously
         // Only unset if there are no remaining methods.
 
-        if (enabledTwoFactorAuthMethodsCount() == 0) {
-          account.unsetPrefPrimaryTwoFactorAuthMethod();
+        List<String> remainingMethods = transition.getRemainingMethods();
+        if (remainingMethods.isEmpty()) {
+          transition.unset(Provisioning.A_zimbraPrefPrimaryTwoFactorAuthMethod);
         } else {
-          String[] enabledMethods = account.getTwoFactorAuthMethodEnabled();
-          String firstEnabledMethod = enabledMethods[0];
-          account.setPrefPrimaryTwoFactorAuthMethod(firstEnabledMethod);
+          String firstEnabledMethod = remainingMethods.get(0);
+          transition.set(Provisioning.A_zimbraPrefPrimaryTwoFactorAuthMethod, firstEnabledMethod);
         }
     }
 
@@ -586,12 +638,11 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         }
     }
 
-    private void smartPurgeTwoFactorAuthData() throws ServiceException {
-        if (enabledTwoFactorAuthMethodsCount() == 0) {
-          deleteCredentials();
-          ZetaAppSpecificPasswords appSpecificPasswordsManager = new ZetaAppSpecificPasswords(account);
-          appSpecificPasswordsManager.revokeAll();
-          account.unsetTwoFactorCodeForEmail();
+    private void smartPurgeTwoFactorAuthData(Transition transition) throws ServiceException {
+        if (transition.getRemainingMethods().isEmpty()) {
+          transition.deleteCredentials()
+              .revokeAppSpecificPasswords()
+              .unset(Provisioning.A_zimbraTwoFactorCodeForEmail);
         }
     }
 
@@ -600,12 +651,14 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         checkDisableTwoFactorAuth();
 
         if (account.isTwoFactorAuthEnabled()) {
-            account.removeTwoFactorAuthMethodEnabled(AccountConstants.E_TWO_FACTOR_METHOD_APP);
-            smartUnsetZimbraTwoFactorAuthEnabled();
+            Transition transition = beginTransition()
+                .removeMethod(AccountConstants.E_TWO_FACTOR_METHOD_APP);
+            smartUnsetZimbraTwoFactorAuthEnabled(transition);
 
-            smartPurgeTwoFactorAuthData();
+            smartPurgeTwoFactorAuthData(transition);
 
-            smartSetPrefPrimaryTwoFactorAuthMethod();
+            smartSetPrefPrimaryTwoFactorAuthMethod(transition);
+            transition.commit();
             ZimbraLog.account.info("Successfully disabled app-based 2FA for account: " + account.getName());
         } else {
             ZimbraLog.account.info("two-factor authentication already disabled for account: " + account.getName());
@@ -617,14 +670,16 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         checkDisableTwoFactorAuth();
 
         if (account.isTwoFactorAuthEnabled()) {
-            account.removeTwoFactorAuthMethodEnabled(AccountConstants.E_TWO_FACTOR_METHOD_EMAIL);
-            smartUnsetZimbraTwoFactorAuthEnabled();
-            account.unsetPrefPasswordRecoveryAddress();
-            account.unsetPrefPasswordRecoveryAddressStatus();
+            Transition transition = beginTransition()
+                .removeMethod(AccountConstants.E_TWO_FACTOR_METHOD_EMAIL);
+            smartUnsetZimbraTwoFactorAuthEnabled(transition);
+            transition.unset(Provisioning.A_zimbraPrefPasswordRecoveryAddress)
+                .unset(Provisioning.A_zimbraPrefPasswordRecoveryAddressStatus);
 
-            smartPurgeTwoFactorAuthData();
+            smartPurgeTwoFactorAuthData(transition);
 
-            smartSetPrefPrimaryTwoFactorAuthMethod();
+            smartSetPrefPrimaryTwoFactorAuthMethod(transition);
+            transition.commit();
             ZimbraLog.account.info("Successfully disabled email-based 2FA for account: " + account.getName());
         } else {
             ZimbraLog.account.info("two-factor authentication already disabled for account: " + account.getName());
@@ -636,39 +691,22 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         if (account.isFeatureTwoFactorAuthRequired()) {
             throw ServiceException.CANNOT_DISABLE_TWO_FACTOR_AUTH();
         } else if (account.isTwoFactorAuthEnabled()) {
-            account.setTwoFactorAuthEnabled(false);
+            Transition transition = beginTransition().disable();
             if (deleteCredentials) {
-                deleteCredentials();
+                transition.deleteCredentials();
             }
-            ZetaAppSpecificPasswords appSpecificPasswordsManager = new ZetaAppSpecificPasswords(account);
-            appSpecificPasswordsManager.revokeAll();
+            transition.revokeAppSpecificPasswords().commit();
         } else {
             ZimbraLog.account.info("two-factor authentication already disabled");
         }
     }
 
     public List<ZetaTrustedDevice> getTrustedDevices() throws ServiceException {
-        List<ZetaTrustedDevice> trustedDevices = new ArrayList<ZetaTrustedDevice>();
-        for (String encoded: account.getTwoFactorAuthTrustedDevices()) {
-            try {
-                ZetaTrustedDevice td = new ZetaTrustedDevice(account, encoded);
-                if (td.isExpired()) {
-                    td.revoke();
-                }
-                trustedDevices.add(td);
-            } catch (ServiceException e) {
-                ZimbraLog.account.error(e.getMessage());
-                account.removeTwoFactorAuthTrustedDevices(encoded);
-            }
-        }
-        return trustedDevices;
+        return session.getTrustedDevices().listTrustedDevices();
     }
 
     public void revokeAllTrustedDevices() throws ServiceException {
-        ZimbraLog.account.debug("revoking all trusted devices");
-        for (ZetaTrustedDevice td: getTrustedDevices()) {
-            td.revoke();
-        }
+        session.getTrustedDevices().revokeAllTrustedDevices();
     }
 
     private void failedLogin() throws ServiceException {
@@ -677,7 +715,7 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
     }
 
     public void storeEmailCode() throws ServiceException {
-        int emailCodeLength = getGlobalConfig().getTwoFactorAuthEmailCodeLength();
+        int emailCodeLength = getConfig().getEmailCodeLength();
         String emailCode = generateNumericCode(emailCodeLength);
 
         String reserved = ""; // Reserved for future use
@@ -722,6 +760,165 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
         return new String(code);
     }
 
+    /**
+     * Attribute changes of one 2FA lifecycle transition. Enabling or
+     * disabling a method touches the enabled flag, the method list, the
+     * credentials, the app-specific passwords and a few preferences; all of
+     * them are collected here and written by {@link #commit()} in a single
+     * {@link Provisioning#modifyAttrs} call, so the account is never left
+     * half-enabled and replication sees one change instead of many.
+     *
+     * <p>Conditions are evaluated against the account as it was when the
+     * transition began, with the method changes queued so far applied on top
+     * (see {@link #getRemainingMethods()}).
+     */
+    public final class Transition {
+        private final AttributeChangeSet changes = new AttributeChangeSet();
+        private final List<String> remainingMethods;
+        private boolean credentialsChanged;
+        private boolean appPasswordsRevoked;
+
+        private Transition() {
+            remainingMethods = new ArrayList<String>(Arrays.asList(account.getTwoFactorAuthMethodEnabled()));
+        }
+
+        /**
+         * Gets the enabled methods once this transition is committed.
+         *
+         * @return the remaining enabled methods, in stored order
+         */
+        public List<String> getRemainingMethods() {
+            return remainingMethods;
+        }
+
+        public Transition enable() {
+            if (!account.isTwoFactorAuthEnabled()) {
+                ZimbraLog.account.info("Enabling 2FA for account: " + account.getName());
+                changes.set(Provisioning.A_zimbraTwoFactorAuthEnabled, ProvisioningConstants.TRUE);
+            }
+            return this;
+        }
+
+        public Transition disable() {
+            changes.set(Provisioning.A_zimbraTwoFactorAuthEnabled, ProvisioningConstants.FALSE);
+            return this;
+        }
+
+        public Transition addMethod(String method) {
+            if (!remainingMethods.contains(method)) {
+                changes.add(Provisioning.A_zimbraTwoFactorAuthMethodEnabled, method);
+                remainingMethods.add(method);
+            }
+            return this;
+        }
+
+        public Transition removeMethod(String method) {
+            if (remainingMethods.remove(method)) {
+                changes.remove(Provisioning.A_zimbraTwoFactorAuthMethodEnabled, method);
+            }
+            return this;
+        }
+
+        /**
+         * Stores a new shared secret and its scratch codes.
+         *
+         * @param credentials the generated credentials
+         * @return this transition
+         * @throws ServiceException if the credentials cannot be encrypted
+         */
+        public Transition storeCredentials(TOTPCredentials credentials) throws ServiceException {
+            String secret = String.format("%s|%s", credentials.getSecret(), credentials.getTimestamp());
+            String codes = Joiner.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR)
+                .join(credentials.getScratchCodes());
+            changes.set(Provisioning.A_zimbraTwoFactorAuthSecret, encrypt(secret));
+            changes.set(Provisioning.A_zimbraTwoFactorAuthScratchCodes, encrypt(codes));
+            credentialsChanged = true;
+            return this;
+        }
+
+        /**
+         * Replaces the stored scratch codes with their hashes when hashed
+         * scratch codes are enabled. Enrollment stores them encrypted so they
+         * can be shown once verified; this is the last point they are needed.
+         *
+         * @param codes the plain scratch codes
+         * @return this transition
+         * @throws ServiceException if the codes cannot be hashed
+         */
+        public Transition hashScratchCodes(List<String> codes) throws ServiceException {
+            if (HashedScratchCodes.isEnabled() && !codes.isEmpty()) {
+                set(Provisioning.A_zimbraTwoFactorAuthScratchCodes, HashedScratchCodes.hash(account, codes));
+            }
+            return this;
+        }
+
+        public Transition deleteCredentials() {
+            changes.unset(Provisioning.A_zimbraTwoFactorAuthSecret);
+            changes.unset(Provisioning.A_zimbraTwoFactorAuthScratchCodes);
+            credentialsChanged = true;
+            return this;
+        }
+
+        public Transition revokeAppSpecificPasswords() {
+            changes.remove(Provisioning.A_zimbraAppSpecificPassword,
+                Arrays.asList(account.getAppSpecificPassword()));
+            appPasswordsRevoked = true;
+            return this;
+        }
+
+        /**
+         * Bumps {@code zimbraAuthTokenValidityValue}, invalidating the auth
+         * tokens issued before the transition.
+         *
+         * @return this transition
+         */
+        public Transition invalidateAuthTokens() {
+            int tokenValidityValue = account.getAuthTokenValidityValue();
+            changes.set(Provisioning.A_zimbraAuthTokenValidityValue,
+                String.valueOf(tokenValidityValue == Integer.MAX_VALUE ? 0 : tokenValidityValue + 1));
+            return this;
+        }
+
+        public Transition set(String attrName, String value) {
+            changes.set(attrName, value);
+            if (isCredentialAttr(attrName)) {
+                credentialsChanged = true;
+            }
+            return this;
+        }
+
+        public Transition unset(String attrName) {
+            changes.unset(attrName);
+            if (isCredentialAttr(attrName)) {
+                credentialsChanged = true;
+            }
+            return this;
+        }
+
+        private boolean isCredentialAttr(String attrName) {
+            return Provisioning.A_zimbraTwoFactorAuthSecret.equals(attrName)
+                || Provisioning.A_zimbraTwoFactorAuthScratchCodes.equals(attrName);
+        }
+
+        /**
+         * Writes all collected changes in one modify and drops the cached
+         * state they make stale. Managers shared through the session reload
+         * on their own, as the stored values they were built from changed.
+         *
+         * @throws ServiceException if the modify fails
+         */
+        public void commit() throws ServiceException {
+            changes.apply(account);
+            if (credentialsChanged) {
+                TwoFactorCredentialCache.getInstance().invalidate(account);
+            }
+            if (appPasswordsRevoked) {
+                AppSpecificPasswordCache.getInstance().invalidate(account);
+                AppSpecificPasswordUsage.getInstance().forgetAll(account);
+            }
+        }
+    }
+
     public static class TwoFactorPasswordChange extends ChangePasswordListener {
         public static final String LISTENER_NAME = "twofactorpasswordchange";
 
@@ -732,10 +929,12 @@ public class ZetaTwoFactorAuth extends TwoFactorAuth {
 
         @Override
         public void postModify(Account acct, String newPassword, Map context) {
+            // Verified app-specific passwords must not outlive a password change
+            AppSpecificPasswordCache.getInstance().invalidate(acct);
             if (acct.isRevokeAppSpecificPasswordsOnPasswordChange()) {
                 try {
                     ZimbraLog.account.info("revoking all app-specific passwords due to password change");
-                    new ZetaAppSpecificPasswords(acct).revokeAll();
+                    TwoFactorSession.get(acct).getAppSpecificPasswords().revokeAll();
                 } catch (ServiceException e) {
                     ZimbraLog.account.error("could not revoke app-specific passwords on password change", e);
                 }
@@ -0,0 +1,201 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.app;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.zimbra.common.account.Key.AccountBy;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.btactic.twofactorauth.core.AttributeChangeSet;
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+
+/**
+ * Write-behind buffer for app-specific password last-used times.
+ * Rewriting an entry costs an LDAP remove and add that replicate everywhere,
+ * so successful logins only record the time here and {@link #flush()}
+ * rewrites each changed entry once per flush interval, with one modify per
+ * account. The extension flushes periodically and on shutdown.
+ *
+ * <p>Buffered times are applied to entries as they are loaded, so readers
+ * such as GetAppSpecificPasswords see the latest value before it is written.
+ *
+ * @author BTACTIC
+ */
+public final class AppSpecificPasswordUsage {
+
+    private static final AppSpecificPasswordUsage INSTANCE = new AppSpecificPasswordUsage();
+
+    private static final String A_APP_SPECIFIC_PASSWORD = Provisioning.A_zimbraAppSpecificPassword;
+
+    // account id -> application name -> last used time
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> pending =
+        new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+    private final long flushInterval;
+
+    private AppSpecificPasswordUsage() {
+        flushInterval = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_ASP_LAST_USED_FLUSH_INTERVAL,
+            TwoFactorAuthConstants.DEFAULT_ASP_LAST_USED_FLUSH_INTERVAL);
+    }
+
+    public static AppSpecificPasswordUsage getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the flush interval.
+     *
+     * @return the interval in seconds; zero or less means times are written immediately
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public boolean isEnabled() {
+        return flushInterval > 0;
+    }
+
+    /**
+     * Records a use of an app-specific password.
+     *
+     * @param account the account owning the password
+     * @param appName the application name of the password
+     * @param dateLastUsed the time of use, in milliseconds
+     */
+    public void record(Account account, String appName, long dateLastUsed) {
+        pendingFor(account.getId()).put(appName, dateLastUsed);
+    }
+
+    private ConcurrentMap<String, Long> pendingFor(String accountId) {
+        ConcurrentMap<String, Long> used = pending.get(accountId);
+        if (used == null) {
+            used = new ConcurrentHashMap<String, Long>();
+            ConcurrentMap<String, Long> existing = pending.putIfAbsent(accountId, used);
+            if (existing != null) {
+                used = existing;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Gets the buffered last-used time of a password.
+     *
+     * @param account the account owning the password
+     * @param appName the application name of the password
+     * @return the buffered time, or null if none is pending
+     */
+    public Long getLastUsed(Account account, String appName) {
+        Map<String, Long> used = pending.get(account.getId());
+        return used == null ? null : used.get(appName);
+    }
+
+    /**
+     * Drops the buffered last-used time of a password that was revoked.
+     *
+     * @param account the account owning the password
+     * @param appName the application name of the password
+     */
+    public void forget(Account account, String appName) {
+        Map<String, Long> used = pending.get(account.getId());
+        if (used != null) {
+            used.remove(appName);
+        }
+    }
+
+    /**
+     * Drops all buffered last-used times of an account.
+     *
+     * @param account the account whose passwords were revoked
+     */
+    public void forgetAll(Account account) {
+        pending.remove(account.getId());
+    }
+
+    /**
+     * Writes every buffered last-used time, one modify per account. Times
+     * whose write failed are buffered again for the next flush.
+     *
+     * @return the number of entries rewritten
+     */
+    public int flush() {
+        int written = 0;
+        for (String accountId: pending.keySet()) {
+            Map<String, Long> used = pending.remove(accountId);
+            if (used == null || used.isEmpty()) {
+                continue;
+            }
+            try {
+                written += flush(accountId, used);
+            } catch (ServiceException | RuntimeException e) {
+                ZimbraLog.account.warn("cannot write app-specific password last-used times for account " + accountId, e);
+                restore(accountId, used);
+            }
+        }
+        if (written > 0) {
+            ZimbraLog.account.debug("wrote %d buffered app-specific password last-used times", written);
+        }
+        return written;
+    }
+
+    private int flush(String accountId, Map<String, Long> used) throws ServiceException {
+        Provisioning prov = Provisioning.getInstance();
+        Account account = prov.get(AccountBy.id, accountId);
+        if (account == null) {
+            return 0;
+        }
+        AttributeChangeSet changes = new AttributeChangeSet();
+        int count = 0;
+        for (String encoded: account.getAppSpecificPassword()) {
+            ZetaAppSpecificPassword appPassword = ZetaAppSpecificPassword.fromLdapEntry(account, encoded);
+            if (appPassword == null) {
+                // Left for ExpiredAppSpecificPasswordSweeper
+                continue;
+            }
+            Long lastUsed = used.get(appPassword.getName());
+            Long current = appPassword.getDateLastUsed();
+            if (lastUsed != null && (current == null || lastUsed > current)) {
+                appPassword.setDateLastUsed(lastUsed);
+                changes.remove(A_APP_SPECIFIC_PASSWORD, encoded);
+                changes.add(A_APP_SPECIFIC_PASSWORD, appPassword.toLdapEntry());
+                count++;
+            }
+        }
+        changes.apply(account);
+        return count;
+    }
+
+    /**
+     * Buffers times again after their write failed. A use recorded since
+     * then is newer and is kept.
+     */
+    private void restore(String accountId, Map<String, Long> used) {
+        ConcurrentMap<String, Long> buffered = pendingFor(accountId);
+        for (Map.Entry<String, Long> entry: used.entrySet()) {
+            buffered.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+}
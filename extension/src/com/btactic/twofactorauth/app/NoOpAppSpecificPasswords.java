@@ -0,0 +1,88 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.app;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.zimbra.cs.account.AppSpecificPassword;
+import com.zimbra.cs.account.auth.twofactor.AppSpecificPasswordData;
+import com.zimbra.cs.account.auth.twofactor.AppSpecificPasswords;
+
+/**
+ * Stateless {@link AppSpecificPasswords} for accounts without two-factor
+ * authentication. App-specific passwords are never enabled for them, so
+ * nothing is loaded or decoded.
+ *
+ * @author BTACTIC
+ */
+public final class NoOpAppSpecificPasswords implements AppSpecificPasswords {
+
+    private static final NoOpAppSpecificPasswords INSTANCE = new NoOpAppSpecificPasswords();
+
+    private NoOpAppSpecificPasswords() {
+    }
+
+    public static NoOpAppSpecificPasswords getInstance() {
+        return INSTANCE;
+    }
+
+    public void clearData() throws ServiceException {
+    }
+
+    @Override
+    public boolean isEnabled() throws ServiceException {
+        return false;
+    }
+
+    @Override
+    public void authenticate(String providedPassword) throws ServiceException {
+        throw AuthFailedServiceException.AUTH_FAILED("app-specific passwords are not enabled");
+    }
+
+    @Override
+    public String getAppNameByPassword(String password) throws ServiceException {
+        throw AuthFailedServiceException.AUTH_FAILED("app-specific passwords are not enabled");
+    }
+
+    @Override
+    public AppSpecificPassword generatePassword(String name) throws ServiceException {
+        throw ServiceException.FAILURE("app-specific passwords are not enabled", new Throwable());
+    }
+
+    @Override
+    public Set<AppSpecificPasswordData> getPasswords() throws ServiceException {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void revoke(String name) throws ServiceException {
+    }
+
+    public int getNumAppPasswords() {
+        return 0;
+    }
+
+    @Override
+    public void revokeAll() throws ServiceException {
+    }
+}
@@ -32,6 +32,9 @@ import com.zimbra.cs.account.auth.twofactor.AppSpecificPasswordData;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.AppSpecificPassword;
+import com.zimbra.cs.account.TrustedTokenKey;
+import com.btactic.twofactorauth.core.CompactRecord;
+import com.btactic.twofactorauth.core.TokenHmac;
 
 public class ZetaAppSpecificPassword implements AppSpecificPassword {
     private Account account;
@@ -41,15 +44,30 @@ public class ZetaAppSpecificPassword implements AppSpecificPassword {
     private Long dateCreated;
     private Long prevDateLastUsed;
     private Long dateLastUsed;
+    private String selector;
+    private String keyVersion;
+    // Exact attribute value this password was loaded from or last stored as
+    private String ldapEntry;
+    // Set when the stored encoding must be rewritten rather than just its last-used time
+    private boolean needsRewrite;
     private static final String NAME_KEY = "n";
     private static final String PASS_KEY = "p";
     private static final String DATE_CREATED_KEY = "dc";
     private static final String DATE_LAST_USED_KEY = "du";
+    private static final String VERSION_KEY = "v";
+    private static final String SELECTOR_KEY = "s";
+    private static final String KEY_VERSION_KEY = "kv";
+
+    /** Encoding version of entries that carry a selector. */
+    private static final long SELECTOR_VERSION = 2L;
+    /** Number of HMAC hex characters kept as selector (64 bits). */
+    private static final int SELECTOR_LENGTH = 16;
 
     public static ZetaAppSpecificPassword generateNew(Account account, String name) throws ServiceException {
         String randomPassword = generatePassword(account);
         Long curTime = System.currentTimeMillis();
         ZetaAppSpecificPassword password = new ZetaAppSpecificPassword(account, name, randomPassword, curTime);
+        password.stampSelector(randomPassword);
         return password;
     }
 
@@ -60,16 +78,35 @@ public class ZetaAppSpecificPassword implements AppSpecificPassword {
 
     @Override
     public void store() throws ServiceException {
-        account.addAppSpecificPassword(toLdapEntry());
+        String entry = toLdapEntry();
+        account.addAppSpecificPassword(entry);
+        ldapEntry = entry;
+        needsRewrite = false;
+    }
+
+    /**
+     * Records a successful use. Only the last-used time changed, so it is
+     * buffered by {@link AppSpecificPasswordUsage} unless the entry itself
+     * must be rewritten or buffering is disabled.
+     *
+     * @throws ServiceException if the entry cannot be rewritten
+     */
+    void recordUse() throws ServiceException {
+        AppSpecificPasswordUsage usage = AppSpecificPasswordUsage.getInstance();
+        if (needsRewrite || !usage.isEnabled()) {
+            update();
+        } else {
+            usage.record(account, appName, dateLastUsed);
+        }
     }
 
     @Override
     public void update() throws ServiceException {
-        account.removeAppSpecificPassword(toLdapEntry(true));
+        account.removeAppSpecificPassword(ldapEntry != null ? ldapEntry : toLdapEntry(true));
         store();
     }
 
-    private String toLdapEntry() {
+    String toLdapEntry() {
         return toLdapEntry(false);
     }
 
@@ -95,12 +132,103 @@ public class ZetaAppSpecificPassword implements AppSpecificPassword {
         setDateLastUsed(dateLastUsed);
     }
 
-    public ZetaAppSpecificPassword(Account account, String encoded) {
-        this(account, ldapToData(encoded));
+    /**
+     * Decodes a stored app-specific password.
+     *
+     * @param account the account owning the password
+     * @param encoded the stored value
+     * @return the password, or null if the value cannot be decoded
+     */
+    public static ZetaAppSpecificPassword fromLdapEntry(Account account, String encoded) {
+        ZetaAppSpecificPasswordData data = ldapToData(encoded);
+        if (data == null || data.getName() == null || data.getPassword() == null
+                || data.getDateCreated() == null) {
+            return null;
+        }
+        ZetaAppSpecificPassword appPassword = new ZetaAppSpecificPassword(account, data);
+        appPassword.ldapEntry = encoded;
+        return appPassword;
     }
 
     private ZetaAppSpecificPassword(Account account, ZetaAppSpecificPasswordData data) {
         this(account, data.getName(), data.getPassword(), data.getDateCreated(), data.getDateLastUsed());
+        this.selector = data.getSelector();
+        this.keyVersion = data.getKeyVersion();
+    }
+
+    /**
+     * Applies a buffered last-used time that has not been written yet.
+     *
+     * @param buffered the buffered time, may be null
+     */
+    void applyBufferedLastUsed(Long buffered) {
+        if (buffered != null && (dateLastUsed == null || buffered > dateLastUsed)) {
+            setDateLastUsed(buffered);
+        }
+    }
+
+    /**
+     * Computes the lookup selector of a password: a short prefix of an HMAC
+     * of the account id and the password under the given trusted token key.
+     * It is not secret-equivalent, but lets the password that may match be
+     * found without running SSHA512 against every stored entry.
+     *
+     * @param account the account owning the password
+     * @param password the plain password
+     * @param keyVersion the key version to use, or null for the current key
+     * @return the selector, or null if the key version is no longer known
+     * @throws ServiceException if the key cannot be loaded
+     */
+    static String computeSelector(Account account, String password, String keyVersion) throws ServiceException {
+        TrustedTokenKey key = keyVersion == null
+            ? TrustedTokenKey.getCurrentKey() : TrustedTokenKey.getVersion(keyVersion);
+        if (key == null) {
+            return null;
+        }
+        String hmac = TokenHmac.getHmac(account.getId() + ":" + password, key.getKey());
+        return hmac.substring(0, SELECTOR_LENGTH);
+    }
+
+    /**
+     * Sets the selector of this password under the current key.
+     */
+    private void stampSelector(String password) throws ServiceException {
+        TrustedTokenKey key = TrustedTokenKey.getCurrentKey();
+        String hmac = TokenHmac.getHmac(account.getId() + ":" + password, key.getKey());
+        selector = hmac.substring(0, SELECTOR_LENGTH);
+        keyVersion = String.valueOf(key.getVersion());
+    }
+
+    /**
+     * Gets the version of the key the selector was computed with.
+     *
+     * @return the key version, or null for entries stored before selectors existed
+     */
+    String getKeyVersion() {
+        return keyVersion;
+    }
+
+    String getSelector() {
+        return selector;
+    }
+
+    /**
+     * Gets the exact attribute value this password is stored as.
+     *
+     * @return the stored value, or null if the password was never stored
+     */
+    String getLdapEntry() {
+        return ldapEntry;
+    }
+
+    /**
+     * Gets when this password expires.
+     *
+     * @return the expiry time in milliseconds, or Long.MAX_VALUE if it never expires
+     */
+    long getExpiresAt() {
+        long passwordLifetime = account.getAppSpecificPasswordDuration();
+        return passwordLifetime == 0L ? Long.MAX_VALUE : getDateCreated() + passwordLifetime;
     }
 
     private String hash(String password) {
@@ -146,6 +274,12 @@ public class ZetaAppSpecificPassword implements AppSpecificPassword {
     public boolean validate(String providedPassword) throws ServiceException {
         if (PasswordUtil.SSHA512.verifySSHA512(getPasswordHash(), providedPassword)) {
             setDateLastUsed(System.currentTimeMillis());
+            String currentVersion = String.valueOf(TrustedTokenKey.getCurrentKey().getVersion());
+            if (keyVersion == null || !keyVersion.equals(currentVersion)) {
+                // Legacy entry or rotated key: persisted with the new selector on update()
+                stampSelector(providedPassword);
+                needsRewrite = true;
+            }
             return true;
         } else {
             return false;
@@ -153,15 +287,41 @@ public class ZetaAppSpecificPassword implements AppSpecificPassword {
     }
 
     private String toLdapEntry(boolean changed) {
+        Long lastUsed = changed ? prevDateLastUsed : dateLastUsed;
+        if (CompactRecord.isWriteEnabled()) {
+            return CompactRecord.writer(CompactRecord.TYPE_APP_SPECIFIC_PASSWORD)
+                .writeString(appName)
+                .writeString(hashedPassword)
+                .writeLong(dateCreated)
+                .writeLong(lastUsed)
+                .writeString(selector)
+                .writeString(keyVersion)
+                .encode();
+        }
         Map<String, Object> map = new HashMap<String, Object>();
         map.put(NAME_KEY, appName);
         map.put(PASS_KEY, hashedPassword);
         map.put(DATE_CREATED_KEY, dateCreated);
-        map.put(DATE_LAST_USED_KEY, changed ? prevDateLastUsed : dateLastUsed);
+        map.put(DATE_LAST_USED_KEY, lastUsed);
+        if (selector != null) {
+            map.put(VERSION_KEY, SELECTOR_VERSION);
+            map.put(SELECTOR_KEY, selector);
+            map.put(KEY_VERSION_KEY, keyVersion);
+        }
         return BEncoding.encode(map);
     }
 
     private static ZetaAppSpecificPasswordData ldapToData(String encoded) {
+        if (CompactRecord.isCompact(encoded)) {
+            try {
+                CompactRecord.Reader reader = CompactRecord.reader(encoded, CompactRecord.TYPE_APP_SPECIFIC_PASSWORD);
+                return new ZetaAppSpecificPasswordData(reader.readString(), reader.readString(),
+                    reader.readLong(), reader.readLong(), reader.readString(), reader.readString());
+            } catch (ServiceException e) {
+                ZimbraLog.account.error("could not decode app-specific password");
+                return null;
+            }
+        }
         String name;
         String pass;
         Long created;
@@ -169,20 +329,24 @@ public class ZetaAppSpecificPassword implements AppSpecificPassword {
         Map<String, Object> decoded;
         try {
             decoded = BEncoding.decode(encoded);
-        } catch (BEncodingException e) {
+            name = (String) decoded.get(NAME_KEY);
+            pass = (String) decoded.get(PASS_KEY);
+            created = (Long) decoded.get(DATE_CREATED_KEY);
+            lastUsed = (Long) decoded.get(DATE_LAST_USED_KEY);
+        } catch (BEncodingException | ClassCastException e) {
             ZimbraLog.account.error("could not decode app-specific password");
             return null;
         }
-        name = (String) decoded.get(NAME_KEY);
-        pass = (String) decoded.get(PASS_KEY);
-        created = (Long) decoded.get(DATE_CREATED_KEY);
-        lastUsed = (Long) decoded.get(DATE_LAST_USED_KEY);
+        if (decoded.get(SELECTOR_KEY) != null) {
+            return new ZetaAppSpecificPasswordData(name, pass, created, lastUsed,
+                (String) decoded.get(SELECTOR_KEY), (String) decoded.get(KEY_VERSION_KEY));
+        }
         return new ZetaAppSpecificPasswordData(name, pass, created, lastUsed);
     }
 
     @Override
     public void revoke() throws ServiceException {
-        account.removeAppSpecificPassword(toLdapEntry());
+        account.removeAppSpecificPassword(ldapEntry != null ? ldapEntry : toLdapEntry());
     }
 
     @Override
@@ -26,12 +26,21 @@ public class ZetaAppSpecificPasswordData implements AppSpecificPasswordData {
     private String passwordHash;
     private Long dateCreated;
     private Long dateLastUsed;
+    private String selector;
+    private String keyVersion;
 
     ZetaAppSpecificPasswordData(String name, String pass, Long dateCreated, Long dateLastUsed) {
+        this(name, pass, dateCreated, dateLastUsed, null, null);
+    }
+
+    ZetaAppSpecificPasswordData(String name, String pass, Long dateCreated, Long dateLastUsed,
+            String selector, String keyVersion) {
         this.name = name;
         this.passwordHash = pass;
         this.dateCreated = dateCreated;
         this.dateLastUsed = dateLastUsed;
+        this.selector = selector;
+        this.keyVersion = keyVersion;
     }
 
     @Override
@@ -53,4 +62,12 @@ public class ZetaAppSpecificPasswordData implements AppSpecificPasswordData {
     public Long getDateLastUsed() {
         return dateLastUsed;
     }
+
+    String getSelector() {
+        return selector;
+    }
+
+    String getKeyVersion() {
+        return keyVersion;
+    }
 }
@@ -19,8 +19,12 @@
  */
 package com.btactic.twofactorauth.app;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -30,10 +34,14 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.btactic.twofactorauth.core.AppSpecificPasswordCache;
+import com.btactic.twofactorauth.core.AttributeChangeSet;
 import com.btactic.twofactorauth.core.BaseTwoFactorAuthComponent;
 import com.btactic.twofactorauth.core.TwoFactorAuthUtils;
 import com.btactic.twofactorauth.exception.TwoFactorCodeInvalidException;
 import com.zimbra.cs.account.AppSpecificPassword;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.TrustedTokenKey;
 
 /**
  * Manages application-specific passwords for two-factor authentication.
@@ -45,6 +53,11 @@ import com.zimbra.cs.account.AppSpecificPassword;
  */
 public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent implements AppSpecificPasswords {
     private Map<String, ZetaAppSpecificPassword> appPasswords = new HashMap<String, ZetaAppSpecificPassword>();
+    // Attribute values the in-memory passwords correspond to, null if never loaded
+    private String[] loadedPasswords;
+    private final boolean available;
+    // Selector lookup over appPasswords, rebuilt lazily after any change
+    private SelectorIndex index;
 
     public ZetaAppSpecificPasswords(Account account) throws ServiceException {
         this(account, account.getName());
@@ -53,9 +66,8 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
     public ZetaAppSpecificPasswords(Account account, String acctNamePassedIn) throws ServiceException {
         super(account, acctNamePassedIn);
         TwoFactorAuthUtils.disableTwoFactorAuthIfNecessary(account);
-        if (account.isFeatureTwoFactorAuthAvailable()) {
-            appPasswords = loadAppPasswords();
-        }
+        // Passwords are loaded on first use, a cached verification needs none of them
+        available = account.isFeatureTwoFactorAuthAvailable();
     }
 
     public void clearData() throws ServiceException {
@@ -73,12 +85,19 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
 
     @Override
     public void authenticate(String providedPassword) throws ServiceException {
-        for (AppSpecificPassword appPassword: appPasswords.values())    {
-            if (appPassword.validate(providedPassword)) {
-                ZimbraLog.account.debug("logged in with app-specific password for account: " + account.getName());
-                appPassword.update();
-                return;
-            }
+        String appName = AppSpecificPasswordCache.getInstance().get(account, providedPassword);
+        if (appName != null) {
+            ZimbraLog.account.debug("logged in with cached app-specific password for account: " + account.getName());
+            recordCachedUse(appName);
+            return;
+        }
+        ZetaAppSpecificPassword appPassword = findPassword(providedPassword);
+        if (appPassword != null) {
+            ZimbraLog.account.debug("logged in with app-specific password for account: " + account.getName());
+            appPassword.recordUse();
+            markLoaded();
+            cacheVerified(providedPassword, appPassword);
+            return;
         }
         ZimbraLog.account.error("invalid app-specific password for account: " + account.getName());
         throw new TwoFactorCodeInvalidException(
@@ -91,12 +110,19 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
 
     @Override
     public String getAppNameByPassword(String password) throws ServiceException {
-        for (ZetaAppSpecificPassword appPassword: appPasswords.values())    {
-            if (appPassword.validate(password)) {
-                ZimbraLog.account.debug("getAppNameByPassword with app-specific password for account: " + account.getName());
-                appPassword.update();
-                return (appPassword.getName());
-            }
+        String appName = AppSpecificPasswordCache.getInstance().get(account, password);
+        if (appName != null) {
+            ZimbraLog.account.debug("getAppNameByPassword with cached app-specific password for account: " + account.getName());
+            recordCachedUse(appName);
+            return appName;
+        }
+        ZetaAppSpecificPassword appPassword = findPassword(password);
+        if (appPassword != null) {
+            ZimbraLog.account.debug("getAppNameByPassword with app-specific password for account: " + account.getName());
+            appPassword.recordUse();
+            markLoaded();
+            cacheVerified(password, appPassword);
+            return (appPassword.getName());
         }
         ZimbraLog.account.error("invalid app-specific password in getAppNameByPassword for account: " + account.getName());
         throw new TwoFactorCodeInvalidException(
@@ -112,6 +138,7 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
         if (!account.isFeatureAppSpecificPasswordsEnabled()) {
             throw ServiceException.FAILURE("app-specific passwords are not enabled", new Throwable());
         }
+        Map<String, ZetaAppSpecificPassword> appPasswords = passwords();
         if (appPasswords.containsKey(name)) {
             throw ServiceException.FAILURE("app-specific password already exists for the name " + name, new Throwable());
         } else if (appPasswords.size() >= account.getMaxAppSpecificPasswords()) {
@@ -120,13 +147,15 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
         ZetaAppSpecificPassword password = ZetaAppSpecificPassword.generateNew(account, name);
         password.store();
         appPasswords.put(name, password);
+        markLoaded();
+        AppSpecificPasswordCache.getInstance().invalidate(account);
         return password;
     }
 
     @Override
     public Set<AppSpecificPasswordData> getPasswords() throws ServiceException {
         Set<AppSpecificPasswordData> dataSet = new HashSet<AppSpecificPasswordData>();
-        for (ZetaAppSpecificPassword appPassword: appPasswords.values()) {
+        for (ZetaAppSpecificPassword appPassword: passwords().values()) {
             dataSet.add(appPassword.getPasswordData());
         }
         return dataSet;
@@ -134,8 +163,12 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
 
     @Override
     public void revoke(String name) throws ServiceException  {
-        if (appPasswords.containsKey(name)) {
-            appPasswords.get(name).revoke();
+        ZetaAppSpecificPassword appPassword = passwords().remove(name);
+        if (appPassword != null) {
+            appPassword.revoke();
+            markLoaded();
+            AppSpecificPasswordCache.getInstance().invalidate(account);
+            AppSpecificPasswordUsage.getInstance().forget(account, name);
         } else {
             //if a password is not provisioned for this app, log but don't return an error
             ZimbraLog.account.error("no app-specific password provisioned for the name " + name);
@@ -143,30 +176,138 @@ public class ZetaAppSpecificPasswords extends BaseTwoFactorAuthComponent impleme
     }
 
     public int getNumAppPasswords() {
-        return appPasswords.size();
+        try {
+            return passwords().size();
+        } catch (ServiceException e) {
+            ZimbraLog.account.warn("cannot reload app-specific passwords for account " + account.getName(), e);
+            return appPasswords.size();
+        }
+    }
+
+    /**
+     * Gets the in-memory passwords, loading them on first use and reloading
+     * them if the attribute was changed by someone else since then. This keeps an instance
+     * shared through {@link com.btactic.twofactorauth.TwoFactorSession}
+     * consistent.
+     */
+    private Map<String, ZetaAppSpecificPassword> passwords() throws ServiceException {
+        if (available && (loadedPasswords == null
+                || !Arrays.equals(loadedPasswords, account.getAppSpecificPassword()))) {
+            appPasswords = loadAppPasswords();
+        }
+        return appPasswords;
+    }
+
+    private void recordCachedUse(String appName) {
+        AppSpecificPasswordUsage usage = AppSpecificPasswordUsage.getInstance();
+        if (usage.isEnabled()) {
+            usage.record(account, appName, System.currentTimeMillis());
+        }
+    }
+
+    private void cacheVerified(String password, ZetaAppSpecificPassword appPassword) throws ServiceException {
+        AppSpecificPasswordCache.getInstance().put(account, password, appPassword.getName(),
+            appPassword.getLdapEntry(), appPassword.getExpiresAt());
+    }
+
+    private void markLoaded() {
+        loadedPasswords = account.getAppSpecificPassword();
+        index = null;
+    }
+
+    /**
+     * Finds the stored password matching the provided one. Entries with a
+     * selector are looked up directly, so at most one SSHA512 verification
+     * runs per key version; only entries without a usable selector are
+     * scanned. A legacy entry that matches gets a selector, which is
+     * persisted by the following {@code update()}.
+     *
+     * @param providedPassword the password presented by the client
+     * @return the matching password, or null if none matches
+     * @throws ServiceException if a password cannot be verified
+     */
+    private ZetaAppSpecificPassword findPassword(String providedPassword) throws ServiceException {
+        SelectorIndex index = getIndex();
+        for (String keyVersion: index.keyVersions) {
+            String selector = ZetaAppSpecificPassword.computeSelector(account, providedPassword, keyVersion);
+            ZetaAppSpecificPassword candidate = index.bySelector.get(keyVersion + ":" + selector);
+            if (candidate != null && candidate.validate(providedPassword)) {
+                return candidate;
+            }
+        }
+        for (ZetaAppSpecificPassword appPassword: index.unindexed) {
+            if (appPassword.validate(providedPassword)) {
+                return appPassword;
+            }
+        }
+        return null;
+    }
+
+    private SelectorIndex getIndex() throws ServiceException {
+        Map<String, ZetaAppSpecificPassword> appPasswords = passwords();
+        if (index == null) {
+            index = new SelectorIndex(appPasswords.values());
+        }
+        return index;
+    }
+
+    /**
+     * Passwords keyed by key version and selector, plus the ones that can
+     * only be found by verifying them one by one.
+     */
+    private static final class SelectorIndex {
+        private final Map<String, ZetaAppSpecificPassword> bySelector = new HashMap<String, ZetaAppSpecificPassword>();
+        private final Set<String> keyVersions = new HashSet<String>();
+        private final List<ZetaAppSpecificPassword> unindexed = new ArrayList<ZetaAppSpecificPassword>();
+
+        private SelectorIndex(Collection<ZetaAppSpecificPassword> passwords) throws ServiceException {
+            Set<String> unknownVersions = new HashSet<String>();
+            for (ZetaAppSpecificPassword appPassword: passwords) {
+                String keyVersion = appPassword.getKeyVersion();
+                if (keyVersion == null || unknownVersions.contains(keyVersion)) {
+                    unindexed.add(appPassword);
+                } else if (!keyVersions.contains(keyVersion) && TrustedTokenKey.getVersion(keyVersion) == null) {
+                    // The key was retired, the selector can no longer be recomputed
+                    unknownVersions.add(keyVersion);
+                    unindexed.add(appPassword);
+                } else {
+                    keyVersions.add(keyVersion);
+                    bySelector.put(keyVersion + ":" + appPassword.getSelector(), appPassword);
+                }
+            }
+        }
     }
 
     private Map<String, ZetaAppSpecificPassword> loadAppPasswords() throws ServiceException {
         Map<String, ZetaAppSpecificPassword> passMap = new HashMap<String, ZetaAppSpecificPassword>();
         String[] passwords = account.getAppSpecificPassword();
+        AppSpecificPasswordUsage usage = AppSpecificPasswordUsage.getInstance();
         for (int i = 0; i < passwords.length; i++) {
-            ZetaAppSpecificPassword entry = new ZetaAppSpecificPassword(account, passwords[i]);
+            ZetaAppSpecificPassword entry = ZetaAppSpecificPassword.fromLdapEntry(account, passwords[i]);
             if (entry != null) {
-                if (entry.isExpired()) {
-                    entry.revoke();
-                } else {
+                entry.applyBufferedLastUsed(usage.getLastUsed(account, entry.getName()));
+                // Expired entries are left for ExpiredAppSpecificPasswordSweeper,
+                // nothing is written on the read path
+                if (!entry.isExpired()) {
                     passMap.put(entry.getName(), entry);
                 }
             }
         }
+        markLoaded();
         return passMap;
     }
 
     @Override
     public void revokeAll() throws ServiceException {
-        for (String name: appPasswords.keySet()) {
-            revoke(name);
-        }
+        // Every stored value goes, including expired ones not yet swept
+        String[] stored = account.getAppSpecificPassword();
+        new AttributeChangeSet()
+            .remove(Provisioning.A_zimbraAppSpecificPassword, Arrays.asList(stored))
+            .apply(account);
+        appPasswords.clear();
+        markLoaded();
+        AppSpecificPasswordCache.getInstance().invalidate(account);
+        AppSpecificPasswordUsage.getInstance().forgetAll(account);
     }
 
 }
@@ -0,0 +1,56 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.util.concurrent.Striped;
+import com.zimbra.cs.account.Account;
+
+/**
+ * Striped per-account locks for read-modify-write updates of 2FA
+ * credentials. Threads working on different accounts almost never share
+ * a stripe, so logins never wait on a global lock. These locks only
+ * cover this JVM; writes that must also be safe across mailbox nodes
+ * combine them with a conditional LDAP modify.
+ *
+ * @author BTACTIC
+ */
+public final class AccountLocks {
+
+    private static final Striped<Lock> LOCKS = Striped.lazyWeakLock(Math.max(1,
+        TwoFactorAuthLocalConfig.getInt(TwoFactorAuthConstants.LC_ACCOUNT_LOCK_STRIPES,
+            TwoFactorAuthConstants.DEFAULT_ACCOUNT_LOCK_STRIPES)));
+
+    private AccountLocks() {
+        // Prevent instantiation of utility class
+        throw new AssertionError("Cannot instantiate utility class");
+    }
+
+    /**
+     * Gets the lock guarding an account.
+     *
+     * @param account the account
+     * @return the lock of the account's stripe
+     */
+    public static Lock get(Account account) {
+        return LOCKS.get(account.getId());
+    }
+}
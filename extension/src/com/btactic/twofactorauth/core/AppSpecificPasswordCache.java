@@ -0,0 +1,205 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.TrustedTokenKey;
+
+/**
+ * Process-wide cache of recently verified app-specific passwords.
+ * IMAP, POP and SMTP clients present the same app-specific password many
+ * times per minute; a hit here answers those logins without decoding the
+ * stored entries or running SSHA512.
+ *
+ * <p>Entries are keyed by account id and an HMAC of the presented password
+ * under the current trusted token key, so no password is kept in memory.
+ * An entry is only honoured while it is younger than the TTL, the password
+ * has not expired and its exact attribute value is still stored on the
+ * account, so a revocation made on another server is seen immediately.
+ * Every local change to an account's app-specific passwords must call
+ * {@link #invalidate(Account)}.
+ *
+ * @author BTACTIC
+ */
+public final class AppSpecificPasswordCache {
+
+    private static final Callable<ConcurrentMap<String, VerifiedPassword>> NEW_ACCOUNT_MAP =
+        new Callable<ConcurrentMap<String, VerifiedPassword>>() {
+            @Override
+            public ConcurrentMap<String, VerifiedPassword> call() {
+                return new ConcurrentHashMap<String, VerifiedPassword>();
+            }
+        };
+
+    private static final AppSpecificPasswordCache INSTANCE = new AppSpecificPasswordCache();
+
+    private final Cache<String, ConcurrentMap<String, VerifiedPassword>> cache;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private AppSpecificPasswordCache() {
+        int maxSize = TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_ASP_CACHE_SIZE,
+            TwoFactorAuthConstants.DEFAULT_ASP_CACHE_SIZE);
+        long ttl = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_ASP_CACHE_TTL,
+            TwoFactorAuthConstants.DEFAULT_ASP_CACHE_TTL);
+        ttl = Math.max(ttl, 0L);
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttl);
+        cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterAccess(ttl, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public static AppSpecificPasswordCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the application name of a recently verified password.
+     *
+     * @param account the account authenticating
+     * @param password the presented password
+     * @return the application name, or null if the password is not cached
+     * @throws ServiceException if the trusted token key cannot be loaded
+     */
+    public String get(Account account, String password) throws ServiceException {
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        ConcurrentMap<String, VerifiedPassword> verified = cache.getIfPresent(account.getId());
+        if (verified != null) {
+            String key = hmac(account, password);
+            VerifiedPassword entry = verified.get(key);
+            if (entry != null) {
+                if (entry.isValid(account, ttlMillis)) {
+                    hits.incrementAndGet();
+                    return entry.appName;
+                }
+                verified.remove(key, entry);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remembers a password that was just verified against a stored entry.
+     *
+     * @param account the account owning the password
+     * @param password the verified password
+     * @param appName the application name of the stored entry
+     * @param ldapEntry the exact attribute value of the stored entry
+     * @param expiresAt when the password expires, in milliseconds since the epoch
+     * @throws ServiceException if the trusted token key cannot be loaded
+     */
+    public void put(Account account, String password, String appName, String ldapEntry, long expiresAt)
+            throws ServiceException {
+        if (ttlMillis <= 0 || ldapEntry == null) {
+            return;
+        }
+        ConcurrentMap<String, VerifiedPassword> verified;
+        try {
+            verified = cache.get(account.getId(), NEW_ACCOUNT_MAP);
+        } catch (ExecutionException e) {
+            throw ServiceException.FAILURE("cannot cache app-specific password", e.getCause());
+        }
+        verified.put(hmac(account, password), new VerifiedPassword(appName, ldapEntry, expiresAt));
+    }
+
+    /**
+     * Drops every cached password of an account.
+     *
+     * @param account the account whose entries to drop
+     */
+    public void invalidate(Account account) {
+        cache.invalidate(account.getId());
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the fraction of lookups served from the cache.
+     *
+     * @return the hit ratio, or 1.0 if there were no lookups yet
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static String hmac(Account account, String password) throws ServiceException {
+        TrustedTokenKey key = TrustedTokenKey.getCurrentKey();
+        return key.getVersion() + ":" + TokenHmac.getHmac(account.getId() + ":" + password, key.getKey());
+    }
+
+    /**
+     * A successful verification and what it was verified against.
+     */
+    private static final class VerifiedPassword {
+        private final String appName;
+        private final String ldapEntry;
+        private final long expiresAt;
+        private final long verifiedAt;
+
+        private VerifiedPassword(String appName, String ldapEntry, long expiresAt) {
+            this.appName = appName;
+            this.ldapEntry = ldapEntry;
+            this.expiresAt = expiresAt;
+            this.verifiedAt = System.currentTimeMillis();
+        }
+
+        private boolean isValid(Account account, long ttlMillis) {
+            long now = System.currentTimeMillis();
+            if (now - verifiedAt > ttlMillis || now >= expiresAt) {
+                return false;
+            }
+            for (String stored: account.getAppSpecificPassword()) {
+                if (ldapEntry.equals(stored)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
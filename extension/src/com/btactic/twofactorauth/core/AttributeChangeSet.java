@@ -0,0 +1,158 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Entry;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Builder for a set of attribute changes committed as a single LDAP modify.
+ * Multi-value additions and removals are collected as {@code +attr} and
+ * {@code -attr} deltas and single values are set or unset, so removing N
+ * passwords or devices costs one directory write instead of N.
+ *
+ * <pre>
+ * new AttributeChangeSet()
+ *     .remove(Provisioning.A_zimbraAppSpecificPassword, values)
+ *     .unset(Provisioning.A_zimbraTwoFactorAuthSecret)
+ *     .apply(account);
+ * </pre>
+ *
+ * @author BTACTIC
+ */
+public final class AttributeChangeSet {
+
+    private final Map<String, List<String>> additions = new LinkedHashMap<String, List<String>>();
+    private final Map<String, List<String>> removals = new LinkedHashMap<String, List<String>>();
+    private final Map<String, Object> replacements = new LinkedHashMap<String, Object>();
+
+    /**
+     * Adds a value to a multi-valued attribute.
+     *
+     * @param attrName the attribute name
+     * @param value the value to add
+     * @return this change set
+     */
+    public AttributeChangeSet add(String attrName, String value) {
+        values(additions, attrName).add(value);
+        return this;
+    }
+
+    /**
+     * Removes a value from a multi-valued attribute.
+     *
+     * @param attrName the attribute name
+     * @param value the exact value to remove
+     * @return this change set
+     */
+    public AttributeChangeSet remove(String attrName, String value) {
+        values(removals, attrName).add(value);
+        return this;
+    }
+
+    /**
+     * Removes several values from a multi-valued attribute.
+     *
+     * @param attrName the attribute name
+     * @param values the exact values to remove
+     * @return this change set
+     */
+    public AttributeChangeSet remove(String attrName, Collection<String> values) {
+        if (!values.isEmpty()) {
+            values(removals, attrName).addAll(values);
+        }
+        return this;
+    }
+
+    /**
+     * Replaces all values of an attribute.
+     *
+     * @param attrName the attribute name
+     * @param value the new value
+     * @return this change set
+     */
+    public AttributeChangeSet set(String attrName, Object value) {
+        replacements.put(attrName, value);
+        return this;
+    }
+
+    /**
+     * Removes all values of an attribute.
+     *
+     * @param attrName the attribute name
+     * @return this change set
+     */
+    public AttributeChangeSet unset(String attrName) {
+        replacements.put(attrName, "");
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return additions.isEmpty() && removals.isEmpty() && replacements.isEmpty();
+    }
+
+    /**
+     * Builds the map passed to {@link Provisioning#modifyAttrs(Entry, Map)}.
+     *
+     * @return the attribute changes
+     */
+    public Map<String, Object> toAttrs() {
+        Map<String, Object> attrs = new HashMap<String, Object>(replacements);
+        for (Map.Entry<String, List<String>> entry: removals.entrySet()) {
+            List<String> values = entry.getValue();
+            attrs.put("-" + entry.getKey(), values.toArray(new String[values.size()]));
+        }
+        for (Map.Entry<String, List<String>> entry: additions.entrySet()) {
+            List<String> values = entry.getValue();
+            attrs.put("+" + entry.getKey(), values.toArray(new String[values.size()]));
+        }
+        return attrs;
+    }
+
+    /**
+     * Commits all changes in one modify. Nothing is written if the change
+     * set is empty.
+     *
+     * @param entry the entry to modify
+     * @throws ServiceException if the modify fails
+     */
+    public void apply(Entry entry) throws ServiceException {
+        if (!isEmpty()) {
+            Provisioning.getInstance().modifyAttrs(entry, toAttrs());
+        }
+    }
+
+    private static List<String> values(Map<String, List<String>> deltas, String attrName) {
+        List<String> values = deltas.get(attrName);
+        if (values == null) {
+            values = new ArrayList<String>();
+            deltas.put(attrName, values);
+        }
+        return values;
+    }
+}
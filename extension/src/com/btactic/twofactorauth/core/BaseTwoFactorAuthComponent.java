@@ -20,12 +20,9 @@
 package com.btactic.twofactorauth.core;
 
 import com.zimbra.cs.account.Account;
-import com.zimbra.cs.account.Config;
 import com.zimbra.cs.account.DataSource;
-import com.zimbra.cs.account.Provisioning;
 import com.zimbra.common.auth.twofactor.TwoFactorOptions.Encoding;
 import com.zimbra.common.service.ServiceException;
-import com.zimbra.common.util.ZimbraLog;
 
 /**
  * Base class for all 2FA components providing common functionality.
@@ -38,11 +35,6 @@ public abstract class BaseTwoFactorAuthComponent {
     protected final Account account;
     protected final String acctNamePassedIn;
 
-    // Cached config objects to improve performance
-    private Config globalConfig;
-    private Encoding secretEncoding;
-    private Encoding scratchEncoding;
-
     /**
      * Creates a new component for the given account.
      *
@@ -76,57 +68,43 @@ public abstract class BaseTwoFactorAuthComponent {
     }
 
     /**
-     * Gets global configuration with caching for better performance.
-     * The config is loaded once and reused for subsequent calls.
+     * Gets the account name this component was created with, as passed in
+     * by the caller; it is used in authentication failure messages.
      *
-     * @return the global Zimbra configuration
+     * @return the account name passed in
+     */
+    public String getAcctNamePassedIn() {
+        return acctNamePassedIn;
+    }
+
+    /**
+     * Gets the shared 2FA configuration snapshot.
+     *
+     * @return the current configuration snapshot
      * @throws ServiceException if config cannot be retrieved
      */
-    protected Config getGlobalConfig() throws ServiceException {
-        if (globalConfig == null) {
-            globalConfig = Provisioning.getInstance().getConfig();
-        }
-        return globalConfig;
+    protected TwoFactorAuthConfig getTwoFactorAuthConfig() throws ServiceException {
+        return TwoFactorAuthConfig.getInstance();
     }
 
     /**
-     * Gets secret encoding with caching.
-     * Falls back to BASE32 if the configured encoding is invalid.
+     * Gets secret encoding from the shared configuration snapshot.
      *
      * @return the secret encoding scheme
      * @throws ServiceException if config cannot be retrieved
      */
     protected Encoding getSecretEncoding() throws ServiceException {
-        if (secretEncoding == null) {
-            try {
-                String enc = getGlobalConfig().getTwoFactorAuthSecretEncodingAsString();
-                secretEncoding = Encoding.valueOf(enc);
-            } catch (IllegalArgumentException e) {
-                ZimbraLog.account.warn("Invalid secret encoding, defaulting to BASE32", e);
-                secretEncoding = Encoding.BASE32;
-            }
-        }
-        return secretEncoding;
+        return getTwoFactorAuthConfig().getSecretEncoding();
     }
 
     /**
-     * Gets scratch code encoding with caching.
-     * Falls back to BASE32 if the configured encoding is invalid.
+     * Gets scratch code encoding from the shared configuration snapshot.
      *
      * @return the scratch code encoding scheme
      * @throws ServiceException if config cannot be retrieved
      */
     protected Encoding getScratchCodeEncoding() throws ServiceException {
-        if (scratchEncoding == null) {
-            try {
-                String enc = getGlobalConfig().getTwoFactorAuthScratchCodeEncodingAsString();
-                scratchEncoding = Encoding.valueOf(enc);
-            } catch (IllegalArgumentException e) {
-                ZimbraLog.account.warn("Invalid scratch code encoding, defaulting to BASE32", e);
-                scratchEncoding = Encoding.BASE32;
-            }
-        }
-        return scratchEncoding;
+        return getTwoFactorAuthConfig().getScratchCodeEncoding();
     }
 
     /**
@@ -0,0 +1,231 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Compact encoding for the records the extension keeps in multi-valued
+ * account attributes (app-specific passwords, trusted devices). A record is
+ * a version byte, a record type byte and a fixed sequence of length-prefixed
+ * fields, stored as URL-safe Base64 behind a {@value #PREFIX} marker.
+ *
+ * <p>Compared to BEncoding there are no key names and no intermediate map:
+ * {@link Reader} walks the decoded bytes once and builds only the field
+ * values asked for. The marker never starts a BEncoded dictionary or a
+ * legacy {@code id|expires|attrs} device value, so readers can tell both
+ * formats apart and keep accepting the legacy one.
+ *
+ * @author BTACTIC
+ */
+public final class CompactRecord {
+
+    /** First character of every compact value. */
+    public static final char PREFIX = '~';
+
+    /** Current encoding version. */
+    public static final int VERSION = 1;
+
+    /** Record type of an app-specific password. */
+    public static final int TYPE_APP_SPECIFIC_PASSWORD = 1;
+
+    /** Record type of a trusted device. */
+    public static final int TYPE_TRUSTED_DEVICE = 2;
+
+    private static final boolean WRITE_ENABLED = TwoFactorAuthLocalConfig.getBoolean(
+        TwoFactorAuthConstants.LC_COMPACT_RECORDS, false);
+
+    private CompactRecord() {
+        // Prevent instantiation of utility class
+        throw new AssertionError("Cannot instantiate utility class");
+    }
+
+    /**
+     * Tells whether new records are written in the compact encoding. This is
+     * off by default: servers running an older extension cannot read compact
+     * records, so it must only be turned on once every server in the
+     * cluster, and any version it may be rolled back to, reads them.
+     *
+     * @return true if records are written compact
+     */
+    public static boolean isWriteEnabled() {
+        return WRITE_ENABLED;
+    }
+
+    public static boolean isCompact(String stored) {
+        return stored != null && !stored.isEmpty() && stored.charAt(0) == PREFIX;
+    }
+
+    public static Writer writer(int recordType) {
+        return new Writer(recordType);
+    }
+
+    /**
+     * Starts reading a compact record.
+     *
+     * @param stored the stored value, including the marker
+     * @param recordType the expected record type
+     * @return a reader positioned on the first field
+     * @throws ServiceException if the value is not a compact record of that type
+     */
+    public static Reader reader(String stored, int recordType) throws ServiceException {
+        if (!isCompact(stored)) {
+            throw ServiceException.FAILURE("not a compact record", null);
+        }
+        byte[] bytes = Base64.decodeBase64(stored.substring(1));
+        if (bytes.length < 2) {
+            throw ServiceException.FAILURE("truncated compact record", null);
+        }
+        if (bytes[0] != VERSION) {
+            throw ServiceException.FAILURE("unsupported compact record version " + bytes[0], null);
+        }
+        if (bytes[1] != recordType) {
+            throw ServiceException.FAILURE("unexpected compact record type " + bytes[1], null);
+        }
+        return new Reader(bytes, 2);
+    }
+
+    /**
+     * Appends fields to a record. Strings are written as a varint of their
+     * UTF-8 length plus one (zero meaning null) followed by the bytes; longs
+     * as a presence byte followed by a zig-zag varint.
+     */
+    public static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(96);
+
+        private Writer(int recordType) {
+            out.write(VERSION);
+            out.write(recordType);
+        }
+
+        public Writer writeString(String value) {
+            if (value == null) {
+                writeVarint(0L);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length + 1L);
+                out.write(bytes, 0, bytes.length);
+            }
+            return this;
+        }
+
+        public Writer writeLong(Long value) {
+            if (value == null) {
+                out.write(0);
+            } else {
+                out.write(1);
+                writeVarint((value << 1) ^ (value >> 63));
+            }
+            return this;
+        }
+
+        public Writer writeCount(int count) {
+            writeVarint(count);
+            return this;
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        /**
+         * Gets the value to store.
+         *
+         * @return the marker followed by the URL-safe Base64 of the record
+         */
+        public String encode() {
+            return PREFIX + Base64.encodeBase64URLSafeString(out.toByteArray());
+        }
+    }
+
+    /**
+     * Reads the fields of a record in the order they were written.
+     */
+    public static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        private Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        public String readString() throws ServiceException {
+            long length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            int len = (int) (length - 1);
+            if (len < 0 || len > buf.length - pos) {
+                throw ServiceException.FAILURE("truncated compact record", null);
+            }
+            String value = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return value;
+        }
+
+        public Long readLong() throws ServiceException {
+            if (pos >= buf.length) {
+                throw ServiceException.FAILURE("truncated compact record", null);
+            }
+            if (buf[pos++] == 0) {
+                return null;
+            }
+            long zigzag = readVarint();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        public int readCount() throws ServiceException {
+            long count = readVarint();
+            if (count > buf.length) {
+                throw ServiceException.FAILURE("invalid compact record count", null);
+            }
+            return (int) count;
+        }
+
+        public boolean hasMore() {
+            return pos < buf.length;
+        }
+
+        private long readVarint() throws ServiceException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= buf.length) {
+                    throw ServiceException.FAILURE("truncated compact record", null);
+                }
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw ServiceException.FAILURE("malformed compact record", null);
+        }
+    }
+}
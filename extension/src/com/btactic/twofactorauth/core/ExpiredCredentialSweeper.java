@@ -0,0 +1,164 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.SearchDirectoryOptions;
+import com.zimbra.cs.account.SearchDirectoryOptions.ObjectType;
+import com.zimbra.cs.ldap.ZLdapFilterFactory.FilterId;
+
+/**
+ * Background removal of expired multi-valued 2FA credentials.
+ * Read paths ignore expired values in memory, so nothing is written while
+ * a user authenticates; a sweeper later removes them from LDAP.
+ *
+ * <p>Each run pages through the accounts homed on this server that have the
+ * attribute set, removes at most {@code twofactorauth_sweep_batch_size}
+ * values with one modify per account, and issues at most
+ * {@code twofactorauth_sweep_rate} modifies per second, shared by all
+ * sweepers. Sweepers are scheduled with
+ * {@link TwoFactorAuthTasks#scheduleSweep}, on a thread of their own, so
+ * waiting on the rate limit never delays other background tasks.
+ *
+ * @author BTACTIC
+ */
+public abstract class ExpiredCredentialSweeper implements Runnable {
+
+    // One budget for all sweepers, so adding a sweeper does not add LDAP load
+    private static final RateLimiter RATE_LIMITER = createRateLimiter();
+
+    private final String name;
+    private final String attrName;
+    private final int batchSize;
+
+    /**
+     * Creates a sweeper for a multi-valued account attribute.
+     *
+     * @param name the sweeper name used in log messages
+     * @param attrName the attribute holding the credentials
+     */
+    protected ExpiredCredentialSweeper(String name, String attrName) {
+        this.name = name;
+        this.attrName = attrName;
+        this.batchSize = TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_SWEEP_BATCH_SIZE,
+            TwoFactorAuthConstants.DEFAULT_SWEEP_BATCH_SIZE);
+    }
+
+    private static RateLimiter createRateLimiter() {
+        int rate = TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_SWEEP_RATE,
+            TwoFactorAuthConstants.DEFAULT_SWEEP_RATE);
+        return RateLimiter.create(rate > 0 ? rate : TwoFactorAuthConstants.DEFAULT_SWEEP_RATE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the stored values of an account that have expired.
+     *
+     * @param account the account to inspect
+     * @param now the current time in milliseconds
+     * @return the exact attribute values to remove, never null
+     * @throws ServiceException if the values cannot be read
+     */
+    protected abstract List<String> getExpiredValues(Account account, long now) throws ServiceException;
+
+    /**
+     * Called after expired values were removed from an account.
+     *
+     * @param account the account that was modified
+     * @param removed the values that were removed
+     */
+    protected void afterRemoval(Account account, List<String> removed) {
+    }
+
+    @Override
+    public void run() {
+        sweep();
+    }
+
+    /**
+     * Runs one sweep.
+     *
+     * @return the number of values removed
+     */
+    public int sweep() {
+        final long now = System.currentTimeMillis();
+        final int[] counts = new int[2]; // values removed, accounts modified
+        Provisioning prov = Provisioning.getInstance();
+        try {
+            String host = prov.getLocalServer().getServiceHostname();
+            SearchDirectoryOptions options = new SearchDirectoryOptions();
+            options.setTypes(ObjectType.accounts);
+            options.setFilterString(FilterId.ADMIN_SEARCH,
+                "(&(" + attrName + "=*)(" + Provisioning.A_zimbraMailHost + "=" + host + "))");
+            // The visitor form streams the result in LDAP pages instead of
+            // materializing every matching account at once
+            prov.searchDirectory(options, new NamedEntry.Visitor() {
+                @Override
+                public void visit(NamedEntry entry) throws ServiceException {
+                    int remaining = batchSize - counts[0];
+                    if (remaining <= 0 || !(entry instanceof Account)) {
+                        return;
+                    }
+                    int removed = sweep((Account) entry, now, remaining);
+                    if (removed > 0) {
+                        counts[0] += removed;
+                        counts[1]++;
+                    }
+                }
+            });
+        } catch (ServiceException e) {
+            ZimbraLog.account.warn("%s sweeper failed", name, e);
+        }
+        ZimbraLog.account.info("%s sweeper removed %d expired entries from %d accounts", name, counts[0], counts[1]);
+        return counts[0];
+    }
+
+    private int sweep(Account account, long now, int remaining) {
+        try {
+            List<String> expired = getExpiredValues(account, now);
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            if (expired.size() > remaining) {
+                expired = expired.subList(0, remaining);
+            }
+            RATE_LIMITER.acquire();
+            new AttributeChangeSet().remove(attrName, expired).apply(account);
+            afterRemoval(account, expired);
+            return expired.size();
+        } catch (ServiceException | RuntimeException e) {
+            // One bad account must not stop the run for the accounts after it
+            ZimbraLog.account.warn("%s sweeper cannot update account %s", name, account.getName(), e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.btactic.twofactorauth.core.EmailCodeParser.EmailCodeData;
+
+/**
+ * Removes email 2FA codes in the background once they have expired, or if
+ * they cannot be parsed. Nothing else ever clears a code that was sent but
+ * not used.
+ *
+ * @author BTACTIC
+ */
+public class ExpiredEmailCodeSweeper extends ExpiredCredentialSweeper {
+
+    public ExpiredEmailCodeSweeper() {
+        super("email code", Provisioning.A_zimbraTwoFactorCodeForEmail);
+    }
+
+    @Override
+    protected List<String> getExpiredValues(Account account, long now) throws ServiceException {
+        String stored = account.getTwoFactorCodeForEmail();
+        if (Strings.isNullOrEmpty(stored)) {
+            return Collections.emptyList();
+        }
+        try {
+            EmailCodeData emailData = EmailCodeParser.parse(account, account.getName());
+            if (emailData.getExpiryTime(account.getTwoFactorCodeLifetimeForEmail()) > now) {
+                return Collections.emptyList();
+            }
+        } catch (ServiceException e) {
+            // A code that cannot be decrypted or parsed can never be verified
+        }
+        return Collections.singletonList(stored);
+    }
+}
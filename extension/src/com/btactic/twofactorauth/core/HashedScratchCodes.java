@@ -0,0 +1,177 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+
+/**
+ * Scratch codes stored as salted SHA-256 hashes instead of one encrypted
+ * list. Checking a code is a single hash plus a set probe, and using it
+ * only drops its hash from the stored value; nothing is decrypted or
+ * re-encrypted.
+ *
+ * <p>The stored value is {@code h1$<salt>$<hash>,<hash>,...}; the salt is
+ * random per generated set and each hash covers the salt, the account id
+ * and the code. Hashed codes cannot be shown to the user again, so the mode
+ * is opt-in through {@code twofactorauth_hashed_scratch_codes}. Encrypted
+ * lists keep working and are converted the first time a code is used or a
+ * new set is generated.
+ *
+ * @author BTACTIC
+ */
+public final class HashedScratchCodes {
+
+    private static final String PREFIX = "h1$";
+    private static final char SEPARATOR = '$';
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Joiner JOINER = Joiner.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR);
+    private static final Splitter SPLITTER = Splitter.on(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR).omitEmptyStrings();
+
+    private static final boolean ENABLED = TwoFactorAuthLocalConfig.getBoolean(
+        TwoFactorAuthConstants.LC_HASHED_SCRATCH_CODES, false);
+
+    private final String salt;
+    private final Set<String> hashes;
+
+    private HashedScratchCodes(String salt, Set<String> hashes) {
+        this.salt = salt;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Tells whether newly stored scratch codes are hashed.
+     *
+     * @return true if hashed scratch codes are enabled
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * Hashes a new set of scratch codes.
+     *
+     * @param account the account owning the codes
+     * @param codes the plain codes
+     * @return the value to store
+     * @throws ServiceException if SHA-256 is not available
+     */
+    public static String hash(Account account, Collection<String> codes) throws ServiceException {
+        byte[] saltBytes = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(saltBytes);
+        String salt = Base64.encodeBase64URLSafeString(saltBytes);
+        Set<String> hashes = new LinkedHashSet<String>();
+        for (String code: codes) {
+            hashes.add(digest(salt, account, code));
+        }
+        return new HashedScratchCodes(salt, Collections.unmodifiableSet(hashes)).encode();
+    }
+
+    /**
+     * Parses a stored hashed value.
+     *
+     * @param stored the stored value
+     * @return the parsed codes
+     * @throws ServiceException if the value is not a hashed scratch code set
+     */
+    public static HashedScratchCodes parse(String stored) throws ServiceException {
+        if (!isHashed(stored)) {
+            throw ServiceException.FAILURE("scratch codes are not hashed", null);
+        }
+        int pos = stored.indexOf(SEPARATOR, PREFIX.length());
+        if (pos == -1) {
+            throw ServiceException.FAILURE("malformed hashed scratch codes", null);
+        }
+        Set<String> hashes = new LinkedHashSet<String>();
+        for (String hash: SPLITTER.split(stored.substring(pos + 1))) {
+            hashes.add(hash);
+        }
+        return new HashedScratchCodes(stored.substring(PREFIX.length(), pos), Collections.unmodifiableSet(hashes));
+    }
+
+    /**
+     * Finds a code in this set.
+     *
+     * @param account the account owning the codes
+     * @param code the code presented by the user
+     * @return the stored hash of the code, or null if it is not in the set
+     * @throws ServiceException if SHA-256 is not available
+     */
+    public String find(Account account, String code) throws ServiceException {
+        String hash = digest(salt, account, code);
+        return hashes.contains(hash) ? hash : null;
+    }
+
+    /**
+     * Gets the value to store once a code has been used.
+     *
+     * @param hash the stored hash of the used code
+     * @return the remaining codes
+     */
+    public HashedScratchCodes without(String hash) {
+        Set<String> remaining = new LinkedHashSet<String>(hashes);
+        remaining.remove(hash);
+        return new HashedScratchCodes(salt, Collections.unmodifiableSet(remaining));
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Gets the value to store for this set.
+     *
+     * @return the encoded value
+     */
+    public String encode() {
+        return PREFIX + salt + SEPARATOR + JOINER.join(hashes);
+    }
+
+    private static String digest(String salt, Account account, String code) throws ServiceException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt.getBytes(StandardCharsets.UTF_8));
+            md.update(account.getId().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) ':');
+            md.update(code.getBytes(StandardCharsets.UTF_8));
+            return Base64.encodeBase64URLSafeString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw ServiceException.FAILURE("cannot hash scratch code", e);
+        }
+    }
+}
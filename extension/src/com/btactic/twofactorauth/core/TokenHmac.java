@@ -0,0 +1,88 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * HMAC-SHA1 over token data, producing the same hex string as
+ * {@code TokenUtil.getHmac}. Each thread keeps one {@link Mac}, so the
+ * provider lookup and key setup are paid once per thread and key instead
+ * of on every call.
+ *
+ * @author BTACTIC
+ */
+public final class TokenHmac {
+
+    private static final String ALGORITHM = "HmacSHA1";
+
+    private static final ThreadLocal<KeyedMac> MAC = new ThreadLocal<KeyedMac>();
+
+    private TokenHmac() {
+    }
+
+    /**
+     * Computes the HMAC of some data.
+     *
+     * @param data the data to sign
+     * @param key the raw key, usually from {@code TrustedTokenKey}
+     * @return the HMAC as lower-case hex
+     * @throws ServiceException if the HMAC cannot be computed
+     */
+    public static String getHmac(String data, byte[] key) throws ServiceException {
+        try {
+            Mac mac = getMac(key);
+            return new String(Hex.encodeHex(mac.doFinal(data.getBytes())));
+        } catch (GeneralSecurityException e) {
+            throw ServiceException.FAILURE("cannot compute " + ALGORITHM, e);
+        }
+    }
+
+    private static Mac getMac(byte[] key) throws GeneralSecurityException {
+        KeyedMac keyed = MAC.get();
+        if (keyed == null) {
+            keyed = new KeyedMac(Mac.getInstance(ALGORITHM));
+            MAC.set(keyed);
+        }
+        if (!Arrays.equals(keyed.key, key)) {
+            keyed.mac.init(new SecretKeySpec(key, ALGORITHM));
+            keyed.key = key.clone();
+        }
+        // doFinal() leaves the Mac ready for the next message with the same key
+        return keyed.mac;
+    }
+
+    private static final class KeyedMac {
+        private final Mac mac;
+        private byte[] key;
+
+        private KeyedMac(Mac mac) {
+            this.mac = mac;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.TrustedTokenKey;
+
+/**
+ * Process-wide cache of trusted device tokens whose HMAC has already been
+ * verified. A browser sends the same {@code ZM_TRUST_TOKEN} cookie on every
+ * login, so a hit here skips the key lookup, the HMAC and the hex and
+ * metadata decoding of the token.
+ *
+ * <p>Entries are keyed by the full encoded token and only map it to the
+ * token id it carries; whether a device still exists for that id is always
+ * checked against the account. Entries of a token id are dropped when its
+ * device is revoked, through an index from token id to the cached tokens so
+ * a revocation only touches its own entries. The whole cache is dropped when
+ * the current trusted token key changes.
+ *
+ * @author BTACTIC
+ */
+public final class TrustedDeviceTokenCache {
+
+    private static final TrustedDeviceTokenCache INSTANCE = new TrustedDeviceTokenCache();
+
+    private final Cache<String, Integer> cache;
+    // token id -> encoded tokens cached for it, kept in step by the removal listener
+    private final SetMultimap<Integer, String> tokensById =
+        Multimaps.synchronizedSetMultimap(HashMultimap.<Integer, String>create());
+    private final boolean enabled;
+    private volatile String keyVersion;
+
+    private TrustedDeviceTokenCache() {
+        int maxSize = TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_TRUSTED_TOKEN_CACHE_SIZE,
+            TwoFactorAuthConstants.DEFAULT_TRUSTED_TOKEN_CACHE_SIZE);
+        long ttl = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_TRUSTED_TOKEN_CACHE_TTL,
+            TwoFactorAuthConstants.DEFAULT_TRUSTED_TOKEN_CACHE_TTL);
+        enabled = ttl > 0 && maxSize > 0;
+        cache = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(maxSize, 0))
+            .expireAfterWrite(Math.max(ttl, 0L), TimeUnit.SECONDS)
+            .removalListener(new RemovalListener<String, Integer>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Integer> notification) {
+                    // A replaced token maps to the same id, its index entry stays
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        tokensById.remove(notification.getValue(), notification.getKey());
+                    }
+                }
+            })
+            .build();
+    }
+
+    public static TrustedDeviceTokenCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the token id of an already verified token.
+     *
+     * @param encoded the encoded token as sent by the client
+     * @return the token id, or null if the token was not verified recently
+     * @throws ServiceException if the current trusted token key cannot be loaded
+     */
+    public Integer get(String encoded) throws ServiceException {
+        if (!enabled) {
+            return null;
+        }
+        checkKeyVersion();
+        return cache.getIfPresent(encoded);
+    }
+
+    /**
+     * Remembers a token whose HMAC was just verified.
+     *
+     * @param encoded the encoded token as sent by the client
+     * @param tokenId the token id it carries
+     */
+    public void put(String encoded, Integer tokenId) {
+        if (enabled) {
+            tokensById.put(tokenId, encoded);
+            cache.put(encoded, tokenId);
+        }
+    }
+
+    /**
+     * Drops every cached token carrying a token id, after its device was
+     * revoked.
+     *
+     * @param tokenId the id of the revoked device's token
+     */
+    public void invalidate(Integer tokenId) {
+        if (enabled && tokenId != null) {
+            cache.invalidateAll(tokensById.removeAll(tokenId));
+        }
+    }
+
+    /**
+     * Drops every cached token carrying one of several token ids, after
+     * their devices were removed.
+     *
+     * @param tokenIds the ids of the removed devices' tokens
+     */
+    public void invalidate(Set<Integer> tokenIds) {
+        for (Integer tokenId: tokenIds) {
+            invalidate(tokenId);
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private void checkKeyVersion() throws ServiceException {
+        String current = String.valueOf(TrustedTokenKey.getCurrentKey().getVersion());
+        if (!current.equals(keyVersion)) {
+            if (keyVersion != null) {
+                cache.invalidateAll();
+            }
+            keyVersion = current;
+        }
+    }
+}
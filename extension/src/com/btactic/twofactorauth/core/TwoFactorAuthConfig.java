@@ -0,0 +1,239 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.zimbra.common.auth.twofactor.AuthenticatorConfig;
+import com.zimbra.common.auth.twofactor.TwoFactorOptions.CodeLength;
+import com.zimbra.common.auth.twofactor.TwoFactorOptions.Encoding;
+import com.zimbra.common.auth.twofactor.TwoFactorOptions.HashAlgorithm;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Config;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth.CredentialConfig;
+
+/**
+ * Immutable snapshot of the global {@code zimbraTwoFactor*} configuration.
+ * One snapshot is shared by every 2FA component in the process, so the
+ * login path never has to look up the global config or parse encodings.
+ *
+ * <p>The snapshot is replaced atomically by {@link #refresh()}, which the
+ * extension runs periodically; a new snapshot is only published when one of
+ * the underlying attributes actually changed.
+ *
+ * <p>The {@link AuthenticatorConfig} and {@link CredentialConfig} objects
+ * handed out are shared and must not be modified by callers.
+ *
+ * @author BTACTIC
+ */
+public final class TwoFactorAuthConfig {
+
+    private static final AtomicReference<TwoFactorAuthConfig> CURRENT = new AtomicReference<TwoFactorAuthConfig>();
+
+    private final HashAlgorithm hashAlgorithm;
+    private final CodeLength codeLength;
+    private final int totpCodeLength;
+    private final long windowSize;
+    private final int windowOffset;
+    private final int emailCodeLength;
+    private final int scratchCodeLength;
+    private final int secretLength;
+    private final Encoding secretEncoding;
+    private final Encoding scratchCodeEncoding;
+    private final AuthenticatorConfig authenticatorConfig;
+    private final ConcurrentMap<Integer, CredentialConfig> credentialConfigs =
+        new ConcurrentHashMap<Integer, CredentialConfig>();
+
+    private TwoFactorAuthConfig(Config config) {
+        hashAlgorithm = HashAlgorithm.valueOf(config.getTwoFactorAuthHashAlgorithmAsString());
+        totpCodeLength = config.getTwoFactorCodeLength();
+        codeLength = CodeLength.valueOf(totpCodeLength);
+        windowSize = config.getTwoFactorTimeWindowLength() / 1000;
+        windowOffset = config.getTwoFactorTimeWindowOffset();
+        emailCodeLength = config.getTwoFactorAuthEmailCodeLength();
+        scratchCodeLength = config.getTwoFactorScratchCodeLength();
+        secretLength = config.getTwoFactorAuthSecretLength();
+        secretEncoding = parseEncoding(config.getTwoFactorAuthSecretEncodingAsString(),
+            TwoFactorAuthConstants.DEFAULT_SECRET_ENCODING, "secret");
+        scratchCodeEncoding = parseEncoding(config.getTwoFactorAuthScratchCodeEncodingAsString(),
+            TwoFactorAuthConstants.DEFAULT_SCRATCH_ENCODING, "scratch code");
+
+        authenticatorConfig = new AuthenticatorConfig();
+        authenticatorConfig.setHashAlgorithm(hashAlgorithm);
+        authenticatorConfig.setNumCodeDigits(codeLength);
+        authenticatorConfig.setWindowSize(windowSize);
+        authenticatorConfig.allowedWindowOffset(windowOffset);
+    }
+
+    /**
+     * Parses an encoding name, falling back to the default on invalid values.
+     *
+     * @param value the configured encoding name
+     * @param defaultEncoding the encoding to use if the value is invalid
+     * @param what a description of the encoding for log messages
+     * @return the parsed encoding
+     */
+    private static Encoding parseEncoding(String value, Encoding defaultEncoding, String what) {
+        try {
+            return Encoding.valueOf(value);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            ZimbraLog.account.warn("Invalid " + what + " encoding, defaulting to " + defaultEncoding, e);
+            return defaultEncoding;
+        }
+    }
+
+    /**
+     * Gets the current snapshot, loading it on first use.
+     *
+     * @return the shared configuration snapshot
+     * @throws ServiceException if the global config cannot be read
+     */
+    public static TwoFactorAuthConfig getInstance() throws ServiceException {
+        TwoFactorAuthConfig current = CURRENT.get();
+        if (current == null) {
+            current = load();
+            if (!CURRENT.compareAndSet(null, current)) {
+                current = CURRENT.get();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Re-reads the global config and publishes a new snapshot if any
+     * {@code zimbraTwoFactor*} value changed. On failure the previous
+     * snapshot stays in place.
+     */
+    public static void refresh() {
+        TwoFactorAuthConfig loaded;
+        try {
+            loaded = load();
+        } catch (ServiceException | IllegalArgumentException e) {
+            ZimbraLog.account.warn("cannot refresh two-factor auth configuration, keeping previous values", e);
+            return;
+        }
+        TwoFactorAuthConfig current = CURRENT.get();
+        if (current == null || !current.hasSameValues(loaded)) {
+            CURRENT.set(loaded);
+            if (current != null) {
+                ZimbraLog.account.info("two-factor auth configuration changed, new snapshot published");
+            }
+        }
+    }
+
+    private static TwoFactorAuthConfig load() throws ServiceException {
+        return new TwoFactorAuthConfig(Provisioning.getInstance().getConfig());
+    }
+
+    private boolean hasSameValues(TwoFactorAuthConfig other) {
+        return hashAlgorithm == other.hashAlgorithm
+            && totpCodeLength == other.totpCodeLength
+            && windowSize == other.windowSize
+            && windowOffset == other.windowOffset
+            && emailCodeLength == other.emailCodeLength
+            && scratchCodeLength == other.scratchCodeLength
+            && secretLength == other.secretLength
+            && secretEncoding == other.secretEncoding
+            && scratchCodeEncoding == other.scratchCodeEncoding;
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public CodeLength getCodeLength() {
+        return codeLength;
+    }
+
+    public int getTOTPCodeLength() {
+        return totpCodeLength;
+    }
+
+    /**
+     * Gets the TOTP time step.
+     *
+     * @return the window size in seconds
+     */
+    public long getWindowSize() {
+        return windowSize;
+    }
+
+    public int getWindowOffset() {
+        return windowOffset;
+    }
+
+    public int getEmailCodeLength() {
+        return emailCodeLength;
+    }
+
+    public int getScratchCodeLength() {
+        return scratchCodeLength;
+    }
+
+    public int getSecretLength() {
+        return secretLength;
+    }
+
+    public Encoding getSecretEncoding() {
+        return secretEncoding;
+    }
+
+    public Encoding getScratchCodeEncoding() {
+        return scratchCodeEncoding;
+    }
+
+    /**
+     * Gets the shared authenticator configuration. Callers must not modify it.
+     *
+     * @return the prebuilt authenticator configuration
+     */
+    public AuthenticatorConfig getAuthenticatorConfig() {
+        return authenticatorConfig;
+    }
+
+    /**
+     * Gets the credential configuration for a given number of scratch codes.
+     * The global part is fixed by this snapshot, so one instance is built per
+     * scratch-code count and shared. Callers must not modify it.
+     *
+     * @param numScratchCodes the number of scratch codes, from the account's COS
+     * @return the shared credential configuration
+     */
+    public CredentialConfig getCredentialConfig(int numScratchCodes) {
+        CredentialConfig config = credentialConfigs.get(numScratchCodes);
+        if (config == null) {
+            config = new CredentialConfig()
+                .setSecretLength(secretLength)
+                .setScratchCodeLength(scratchCodeLength)
+                .setEncoding(secretEncoding)
+                .setScratchCodeEncoding(scratchCodeEncoding)
+                .setNumScratchCodes(numScratchCodes);
+            CredentialConfig existing = credentialConfigs.putIfAbsent(numScratchCodes, config);
+            if (existing != null) {
+                config = existing;
+            }
+        }
+        return config;
+    }
+}
@@ -86,6 +86,151 @@ public final class TwoFactorAuthConstants {
     /** Error message when no email-based 2FA code is found in the account data. */
     public static final String ERROR_EMAIL_CODE_NOT_FOUND = "Email based 2FA code not found on server.";
 
+    /** Localconfig key for the maximum number of accounts kept in the decrypted-credential cache. */
+    public static final String LC_CREDENTIAL_CACHE_SIZE = "twofactorauth_credential_cache_size";
+
+    /** Localconfig key for how long a decrypted-credential cache entry lives, in seconds. */
+    public static final String LC_CREDENTIAL_CACHE_TTL = "twofactorauth_credential_cache_ttl";
+
+    /** Default maximum number of accounts kept in the decrypted-credential cache. */
+    public static final int DEFAULT_CREDENTIAL_CACHE_SIZE = 10000;
+
+    /** Default lifetime of a decrypted-credential cache entry, in seconds. */
+    public static final long DEFAULT_CREDENTIAL_CACHE_TTL = 300L;
+
+    /** Localconfig key for how often the shared configuration snapshot is re-read, in seconds. */
+    public static final String LC_CONFIG_REFRESH_INTERVAL = "twofactorauth_config_refresh_interval";
+
+    /** Default interval between configuration snapshot refreshes, in seconds. */
+    public static final long DEFAULT_CONFIG_REFRESH_INTERVAL = 60L;
+
+    /** Localconfig key for how often the extension's cache and queue statistics are logged, in seconds. */
+    public static final String LC_STATS_LOG_INTERVAL = "twofactorauth_stats_log_interval";
+
+    /** Default interval between statistics log lines, in seconds; <= 0 disables them. */
+    public static final long DEFAULT_STATS_LOG_INTERVAL = 900L;
+
+    /** Localconfig key for the maximum number of accounts in the verified app-specific password cache. */
+    public static final String LC_ASP_CACHE_SIZE = "twofactorauth_asp_cache_size";
+
+    /** Localconfig key for how long a verified app-specific password is trusted, in seconds. */
+    public static final String LC_ASP_CACHE_TTL = "twofactorauth_asp_cache_ttl";
+
+    /** Default maximum number of accounts in the verified app-specific password cache. */
+    public static final int DEFAULT_ASP_CACHE_SIZE = 10000;
+
+    /** Default lifetime of a verified app-specific password cache entry, in seconds. */
+    public static final long DEFAULT_ASP_CACHE_TTL = 60L;
+
+    /** Localconfig key for how often buffered app-specific password last-used times are written, in seconds. */
+    public static final String LC_ASP_LAST_USED_FLUSH_INTERVAL = "twofactorauth_asp_last_used_flush_interval";
+
+    /** Default interval between writes of buffered last-used times, in seconds. */
+    public static final long DEFAULT_ASP_LAST_USED_FLUSH_INTERVAL = 3600L;
+
+    /** Localconfig key for how often expired credentials are swept, in seconds. */
+    public static final String LC_SWEEP_INTERVAL = "twofactorauth_sweep_interval";
+
+    /** Localconfig key for the maximum number of expired values removed per sweep. */
+    public static final String LC_SWEEP_BATCH_SIZE = "twofactorauth_sweep_batch_size";
+
+    /** Localconfig key for the maximum number of LDAP modifications per second during a sweep. */
+    public static final String LC_SWEEP_RATE = "twofactorauth_sweep_rate";
+
+    /** Default interval between sweeps, in seconds. */
+    public static final long DEFAULT_SWEEP_INTERVAL = 3600L;
+
+    /** Default maximum number of expired values removed per sweep. */
+    public static final int DEFAULT_SWEEP_BATCH_SIZE = 500;
+
+    /** Default maximum number of LDAP modifications per second during a sweep. */
+    public static final int DEFAULT_SWEEP_RATE = 10;
+
+    /** Localconfig key for the maximum number of verified trusted device tokens kept in memory. */
+    public static final String LC_TRUSTED_TOKEN_CACHE_SIZE = "twofactorauth_trusted_token_cache_size";
+
+    /** Localconfig key for how long a verified trusted device token is cached, in seconds. */
+    public static final String LC_TRUSTED_TOKEN_CACHE_TTL = "twofactorauth_trusted_token_cache_ttl";
+
+    /** Default maximum number of verified trusted device tokens kept in memory. */
+    public static final int DEFAULT_TRUSTED_TOKEN_CACHE_SIZE = 10000;
+
+    /** Default lifetime of a verified trusted device token cache entry, in seconds. */
+    public static final long DEFAULT_TRUSTED_TOKEN_CACHE_TTL = 300L;
+
+    /**
+     * Localconfig key for whether app-specific passwords and trusted devices
+     * are written in the compact encoding; off by default, compact values are
+     * always read.
+     */
+    public static final String LC_COMPACT_RECORDS = "twofactorauth_compact_records";
+
+    /** Localconfig key for the maximum number of trusted devices per account; 0 means unlimited. */
+    public static final String LC_MAX_TRUSTED_DEVICES = "twofactorauth_max_trusted_devices";
+
+    /** Default maximum number of trusted devices per account. */
+    public static final int DEFAULT_MAX_TRUSTED_DEVICES = 20;
+
+    /** Localconfig key for whether newly stored scratch codes are kept as salted hashes. */
+    public static final String LC_HASHED_SCRATCH_CODES = "twofactorauth_hashed_scratch_codes";
+
+    /** Localconfig key for the number of per-account lock stripes. */
+    public static final String LC_ACCOUNT_LOCK_STRIPES = "twofactorauth_account_lock_stripes";
+
+    /** Default number of per-account lock stripes. */
+    public static final int DEFAULT_ACCOUNT_LOCK_STRIPES = 1024;
+
+    /** Localconfig key for the number of pre-generated credential sets kept per credential shape; 0 disables the pool. */
+    public static final String LC_CREDENTIAL_POOL_SIZE = "twofactorauth_credential_pool_size";
+
+    /** Default number of pre-generated credential sets kept per credential shape. */
+    public static final int DEFAULT_CREDENTIAL_POOL_SIZE = 16;
+
+    /** Localconfig key for the maximum number of pending app enrollments kept in memory. */
+    public static final String LC_PENDING_ENROLLMENT_CACHE_SIZE = "twofactorauth_pending_enrollment_cache_size";
+
+    /** Localconfig key for how long a started app enrollment can be verified, in seconds. */
+    public static final String LC_PENDING_ENROLLMENT_TTL = "twofactorauth_pending_enrollment_ttl";
+
+    /** Default maximum number of pending app enrollments kept in memory. */
+    public static final int DEFAULT_PENDING_ENROLLMENT_CACHE_SIZE = 10000;
+
+    /** Default time a started app enrollment can be verified, in seconds. */
+    public static final long DEFAULT_PENDING_ENROLLMENT_TTL = 900L;
+
+    /** Localconfig key for the number of threads sending two-factor auth code emails. */
+    public static final String LC_EMAIL_WORKERS = "twofactorauth_email_workers";
+
+    /** Localconfig key for the maximum number of code emails waiting to be sent. */
+    public static final String LC_EMAIL_QUEUE_SIZE = "twofactorauth_email_queue_size";
+
+    /** Localconfig key for how many times a code email is tried before giving up. */
+    public static final String LC_EMAIL_MAX_ATTEMPTS = "twofactorauth_email_max_attempts";
+
+    /** Localconfig key for the delay before the first retry of a code email, in milliseconds; it doubles on each retry. */
+    public static final String LC_EMAIL_RETRY_DELAY = "twofactorauth_email_retry_delay_ms";
+
+    /** Default number of threads sending two-factor auth code emails. */
+    public static final int DEFAULT_EMAIL_WORKERS = 4;
+
+    /** Default maximum number of code emails waiting to be sent. */
+    public static final int DEFAULT_EMAIL_QUEUE_SIZE = 1000;
+
+    /** Default number of attempts for a code email. */
+    public static final int DEFAULT_EMAIL_MAX_ATTEMPTS = 3;
+
+    /** Default delay before the first retry of a code email, in milliseconds. */
+    public static final long DEFAULT_EMAIL_RETRY_DELAY = 2000L;
+
+    /** Localconfig key for the maximum number of compiled code email templates kept in memory. */
+    public static final String LC_EMAIL_TEMPLATE_CACHE_SIZE = "twofactorauth_email_template_cache_size";
+
+    /** Default maximum number of compiled code email templates kept in memory. */
+    public static final int DEFAULT_EMAIL_TEMPLATE_CACHE_SIZE = 1000;
+
+    /** Localconfig key for whether code emails go straight to SMTP instead of through the account's mailbox. */
+    public static final String LC_EMAIL_DIRECT_SMTP = "twofactorauth_email_direct_smtp";
+
     /**
      * Private constructor to prevent instantiation.
      * This is a utility class that should only provide constants.
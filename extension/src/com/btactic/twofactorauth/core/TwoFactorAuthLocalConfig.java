@@ -0,0 +1,96 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Reads tuning values for the 2FA extension from localconfig.
+ * Every key is optional; a missing or malformed value falls back to the
+ * supplied default so the extension works without any zmlocalconfig changes.
+ *
+ * @author BTACTIC
+ */
+public final class TwoFactorAuthLocalConfig {
+
+    private TwoFactorAuthLocalConfig() {
+        // Prevent instantiation of utility class
+        throw new AssertionError("Cannot instantiate utility class");
+    }
+
+    /**
+     * Gets an integer localconfig value.
+     *
+     * @param key the localconfig key
+     * @param defaultValue the value to use when the key is unset or invalid
+     * @return the configured value or the default
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = LC.get(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ZimbraLog.account.warn("invalid integer value '%s' for localconfig key %s, using %d",
+                value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a long localconfig value.
+     *
+     * @param key the localconfig key
+     * @param defaultValue the value to use when the key is unset or invalid
+     * @return the configured value or the default
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = LC.get(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            ZimbraLog.account.warn("invalid long value '%s' for localconfig key %s, using %d",
+                value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a boolean localconfig value.
+     *
+     * @param key the localconfig key
+     * @param defaultValue the value to use when the key is unset
+     * @return the configured value or the default
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = LC.get(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Owns the schedulers used for the extension's background work. Short
+ * housekeeping tasks share a small scheduler; the expiry sweepers, which
+ * throttle their directory writes and may run for minutes, get a
+ * single-thread scheduler of their own so they never hold up the others.
+ * The schedulers are created on first use and shut down when the extension
+ * is destroyed, so no daemon threads outlive the extension.
+ *
+ * @author BTACTIC
+ */
+public final class TwoFactorAuthTasks {
+
+    private static final int POOL_SIZE = 2;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10L;
+
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledExecutorService sweepScheduler;
+
+    private TwoFactorAuthTasks() {
+        // Prevent instantiation of utility class
+        throw new AssertionError("Cannot instantiate utility class");
+    }
+
+    /**
+     * Gets the shared scheduler, creating it if needed.
+     *
+     * @return the scheduler for periodic extension tasks
+     */
+    public static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null || scheduler.isShutdown()) {
+            scheduler = Executors.newScheduledThreadPool(POOL_SIZE, newDaemonThreadFactory("TwoFactorAuthTasks"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Schedules a task to run repeatedly with a fixed delay between runs.
+     * Exceptions are logged so that one failed run does not cancel the task.
+     *
+     * @param name the task name used in log messages
+     * @param task the task to run
+     * @param delay the delay between the end of one run and the start of the next
+     * @param unit the unit of {@code delay}
+     */
+    public static void scheduleWithFixedDelay(String name, Runnable task, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            ZimbraLog.account.info("two-factor auth task %s is disabled", name);
+            return;
+        }
+        getScheduler().scheduleWithFixedDelay(logFailures(name, task), delay, delay, unit);
+    }
+
+    /**
+     * Schedules an expiry sweep to run repeatedly with a fixed delay between
+     * runs. Sweeps run one at a time on their own thread.
+     *
+     * @param name the task name used in log messages
+     * @param task the sweep to run
+     * @param delay the delay between the end of one run and the start of the next
+     * @param unit the unit of {@code delay}
+     */
+    public static synchronized void scheduleSweep(String name, Runnable task, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            ZimbraLog.account.info("two-factor auth task %s is disabled", name);
+            return;
+        }
+        if (sweepScheduler == null || sweepScheduler.isShutdown()) {
+            sweepScheduler = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("TwoFactorAuthSweeper"));
+        }
+        sweepScheduler.scheduleWithFixedDelay(logFailures(name, task), delay, delay, unit);
+    }
+
+    /**
+     * Runs a one-off task in the background.
+     *
+     * @param name the task name used in log messages
+     * @param task the task to run
+     * @throws java.util.concurrent.RejectedExecutionException if the scheduler is shutting down
+     */
+    public static void execute(String name, Runnable task) {
+        getScheduler().execute(logFailures(name, task));
+    }
+
+    private static Runnable logFailures(final String name, final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    ZimbraLog.account.warn("two-factor auth task " + name + " failed", t);
+                }
+            }
+        };
+    }
+
+    /**
+     * Stops the schedulers, waiting briefly for running tasks to finish.
+     */
+    public static synchronized void shutdown() {
+        stop(scheduler);
+        scheduler = null;
+        stop(sweepScheduler);
+        sweepScheduler = null;
+    }
+
+    private static void stop(ScheduledExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
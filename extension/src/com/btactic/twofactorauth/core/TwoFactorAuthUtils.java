@@ -19,13 +19,22 @@
  */
 package com.btactic.twofactorauth.core;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.account.ProvisioningConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Account;
-import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.ldap.LdapDateUtil;
+import com.btactic.twofactorauth.core.TwoFactorCredentialCache.CachedCredentials;
+import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevice;
 
 /**
  * Utility methods for two-factor authentication operations.
@@ -35,16 +44,52 @@ import com.zimbra.cs.ldap.LdapDateUtil;
  */
 public final class TwoFactorAuthUtils {
 
+    /**
+     * Accounts already known not to need a reset, keyed by account id. An
+     * entry is only valid for the secret ciphertext and COS last-reset value
+     * it was computed from. Sized like the credential cache, since both hold
+     * one entry per active 2FA account.
+     */
+    private static final Cache<String, ResetCheck> RESET_CHECKS = CacheBuilder.newBuilder()
+        .maximumSize(TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_CREDENTIAL_CACHE_SIZE,
+            TwoFactorAuthConstants.DEFAULT_CREDENTIAL_CACHE_SIZE))
+        .build();
+
+    private static final AtomicLong avoidedDecrypts = new AtomicLong();
+
     private TwoFactorAuthUtils() {
         // Prevent instantiation of utility class
         throw new AssertionError("Cannot instantiate utility class");
     }
 
+    /**
+     * Determines if an account has no two-factor authentication at all:
+     * the feature is unavailable, or 2FA is neither enabled nor required and
+     * no secret is stored. Only plain attribute reads are done, nothing is
+     * decrypted.
+     *
+     * @param account the account to check
+     * @return true if the account can be served by the no-op managers
+     */
+    public static boolean isTwoFactorAuthInactive(Account account) {
+        if (!account.isFeatureTwoFactorAuthAvailable()) {
+            return true;
+        }
+        return !account.isTwoFactorAuthEnabled()
+            && !account.isFeatureTwoFactorAuthRequired()
+            && Strings.isNullOrEmpty(account.getTwoFactorAuthSecret());
+    }
+
     /**
      * Disables two-factor authentication if the last reset date is after
      * the timestamp of the stored secret. This handles the case where an
      * admin has reset 2FA globally.
      *
+     * <p>The outcome is memoized per account on the secret ciphertext and the
+     * raw COS last-reset value, so repeated checks during one login cost a
+     * single map lookup until either value changes.
+     *
      * @param account the account to check
      * @throws ServiceException if the operation fails
      */
@@ -54,19 +99,30 @@ public final class TwoFactorAuthUtils {
             return;
         }
 
-        String decrypted = DataSource.decryptData(account.getId(), encryptedSecret);
-        String[] parts = decrypted.split(TwoFactorAuthConstants.SECRET_SEPARATOR);
+        String lastReset = account.getCOS().getAttr(Provisioning.A_zimbraTwoFactorAuthLastReset, null);
+        if (Strings.isNullOrEmpty(lastReset)) {
+            // Nothing was ever reset, no need to look at the secret
+            avoidedDecrypts.incrementAndGet();
+            return;
+        }
+
+        ResetCheck check = RESET_CHECKS.getIfPresent(account.getId());
+        if (check != null && check.matches(encryptedSecret, lastReset)) {
+            avoidedDecrypts.incrementAndGet();
+            return;
+        }
+
+        CachedCredentials credentials = TwoFactorCredentialCache.getInstance().get(account);
+        int partsCount = credentials.getSecretPartsCount();
 
         Date timestamp;
-        if (parts.length == TwoFactorAuthConstants.SECRET_PARTS_COUNT_LEGACY) {
+        if (partsCount == TwoFactorAuthConstants.SECRET_PARTS_COUNT_LEGACY) {
             // For backwards compatibility with the server version
             // that did not store a timestamp.
             timestamp = null;
-        } else if (parts.length == TwoFactorAuthConstants.SECRET_PARTS_COUNT) {
+        } else if (partsCount == TwoFactorAuthConstants.SECRET_PARTS_COUNT) {
             try {
-                timestamp = LdapDateUtil.parseGeneralizedTime(
-                    parts[TwoFactorAuthConstants.SECRET_TIMESTAMP_INDEX]
-                );
+                timestamp = LdapDateUtil.parseGeneralizedTime(credentials.getSecretTimestamp());
             } catch (NumberFormatException e) {
                 throw ServiceException.FAILURE(
                     TwoFactorAuthConstants.ERROR_INVALID_SECRET_TIMESTAMP, e
@@ -85,9 +141,20 @@ public final class TwoFactorAuthUtils {
 
         if (timestamp == null || lastDisabledDate.after(timestamp)) {
             clearTwoFactorAuthData(account);
+        } else {
+            RESET_CHECKS.put(account.getId(), new ResetCheck(encryptedSecret, lastReset));
         }
     }
 
+    /**
+     * Gets the number of reset checks answered without decrypting the secret.
+     *
+     * @return the number of avoided decrypts since startup
+     */
+    public static long getAvoidedDecryptCount() {
+        return avoidedDecrypts.get();
+    }
+
     /**
      * Clears all 2FA data for an account.
      * This is a complete reset of 2FA including credentials, scratch codes,
@@ -97,20 +164,36 @@ public final class TwoFactorAuthUtils {
      * @throws ServiceException if the operation fails
      */
     private static void clearTwoFactorAuthData(Account account) throws ServiceException {
-        account.setTwoFactorAuthEnabled(false);
-        account.setTwoFactorAuthSecret(null);
-        account.setTwoFactorAuthScratchCodes(null);
-
-        // Clear app-specific passwords
-        String[] passwords = account.getAppSpecificPassword();
-        for (String password : passwords) {
-            account.removeAppSpecificPassword(password);
+        // One modify for the credentials, app-specific passwords and trusted devices
+        List<String> trustedDevices = Arrays.asList(account.getTwoFactorAuthTrustedDevices());
+        new AttributeChangeSet()
+            .set(Provisioning.A_zimbraTwoFactorAuthEnabled, ProvisioningConstants.FALSE)
+            .unset(Provisioning.A_zimbraTwoFactorAuthSecret)
+            .unset(Provisioning.A_zimbraTwoFactorAuthScratchCodes)
+            .remove(Provisioning.A_zimbraAppSpecificPassword, Arrays.asList(account.getAppSpecificPassword()))
+            .remove(Provisioning.A_zimbraTwoFactorAuthTrustedDevices, trustedDevices)
+            .apply(account);
+        TrustedDeviceTokenCache.getInstance().invalidate(ZetaTrustedDevice.getTokenIds(trustedDevices));
+        TwoFactorCredentialCache.getInstance().invalidate(account);
+        RESET_CHECKS.invalidate(account.getId());
+        AppSpecificPasswordCache.getInstance().invalidate(account);
+    }
+
+    /**
+     * Inputs of a reset check that found nothing to reset.
+     */
+    private static final class ResetCheck {
+        private final String encryptedSecret;
+        private final String lastReset;
+
+        private ResetCheck(String encryptedSecret, String lastReset) {
+            this.encryptedSecret = encryptedSecret;
+            this.lastReset = lastReset;
         }
 
-        // Clear trusted devices
-        String[] trustedDevices = account.getTwoFactorAuthTrustedDevices();
-        for (String device : trustedDevices) {
-            account.removeTwoFactorAuthTrustedDevices(device);
+        private boolean matches(String encryptedSecret, String lastReset) {
+            return Objects.equal(this.encryptedSecret, encryptedSecret)
+                && Objects.equal(this.lastReset, lastReset);
         }
     }
 }
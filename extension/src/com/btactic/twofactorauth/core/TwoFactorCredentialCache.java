@@ -0,0 +1,274 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base32;
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.auth.twofactor.TwoFactorOptions.Encoding;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.DataSource;
+
+/**
+ * Process-wide cache of decrypted 2FA credentials.
+ * Entries are keyed by account id and carry the ciphertext they were built
+ * from, which acts as the attribute version: a lookup only hits when the
+ * account still holds the exact same encrypted secret and scratch codes, so
+ * a change made on another server is picked up on the next access.
+ *
+ * <p>The cache is bounded and entries expire after a fixed time, so decrypted
+ * secrets do not stay in memory for idle accounts.
+ *
+ * @author BTACTIC
+ */
+public final class TwoFactorCredentialCache {
+
+    private static final TwoFactorCredentialCache INSTANCE = new TwoFactorCredentialCache();
+
+    private final Cache<String, CachedCredentials> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private TwoFactorCredentialCache() {
+        int maxSize = TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_CREDENTIAL_CACHE_SIZE,
+            TwoFactorAuthConstants.DEFAULT_CREDENTIAL_CACHE_SIZE);
+        long ttl = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_CREDENTIAL_CACHE_TTL,
+            TwoFactorAuthConstants.DEFAULT_CREDENTIAL_CACHE_TTL);
+        cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public static TwoFactorCredentialCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the decrypted credentials of an account, decrypting the stored
+     * secret only when it is not cached or has changed since it was cached.
+     *
+     * @param account the account to read
+     * @return the cached credentials, never null
+     * @throws ServiceException if the secret cannot be decrypted
+     */
+    public CachedCredentials get(Account account) throws ServiceException {
+        String encryptedSecret = account.getTwoFactorAuthSecret();
+        String encryptedCodes = account.getTwoFactorAuthScratchCodes();
+        CachedCredentials cached = cache.getIfPresent(account.getId());
+        if (cached != null && cached.isVersion(encryptedSecret, encryptedCodes)) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        CachedCredentials loaded = new CachedCredentials(account.getId(), encryptedSecret, encryptedCodes);
+        cache.put(account.getId(), loaded);
+        return loaded;
+    }
+
+    /**
+     * Decodes a plain TOTP shared secret into a key.
+     *
+     * @param secret the encoded secret
+     * @param encoding the encoding the secret was generated with
+     * @return the decoded key
+     */
+    public static SecretKeySpec toSecretKey(String secret, Encoding encoding) {
+        byte[] bytes;
+        if (encoding == Encoding.BASE64) {
+            bytes = Base64.decodeBase64(secret);
+        } else {
+            bytes = new Base32().decode(secret);
+        }
+        return new SecretKeySpec(bytes, "RAW");
+    }
+
+    /**
+     * Drops the cached credentials of an account.
+     * Must be called whenever the secret or scratch codes are written.
+     *
+     * @param account the account whose entry to drop
+     */
+    public void invalidate(Account account) {
+        cache.invalidate(account.getId());
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the fraction of lookups served from the cache.
+     *
+     * @return the hit ratio, or 1.0 if there were no lookups yet
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Decrypted view of the secret and scratch codes of one account.
+     * The secret is decrypted eagerly because every caller needs it; the
+     * scratch codes and the decoded TOTP key are built on first use.
+     */
+    public static final class CachedCredentials {
+        private final String accountId;
+        private final String encryptedSecret;
+        private final String encryptedCodes;
+        private final String[] secretParts;
+        private volatile List<String> scratchCodes;
+        private volatile DecodedKey decodedKey;
+
+        private CachedCredentials(String accountId, String encryptedSecret, String encryptedCodes)
+                throws ServiceException {
+            this.accountId = accountId;
+            this.encryptedSecret = encryptedSecret;
+            this.encryptedCodes = encryptedCodes;
+            if (encryptedSecret == null) {
+                secretParts = null;
+            } else {
+                String decrypted = DataSource.decryptData(accountId, encryptedSecret);
+                secretParts = decrypted.split(TwoFactorAuthConstants.SECRET_SEPARATOR);
+            }
+        }
+
+        private boolean isVersion(String encryptedSecret, String encryptedCodes) {
+            return Objects.equal(this.encryptedSecret, encryptedSecret)
+                && Objects.equal(this.encryptedCodes, encryptedCodes);
+        }
+
+        public boolean hasStoredSecret() {
+            return secretParts != null;
+        }
+
+        public boolean hasStoredScratchCodes() {
+            return !Strings.isNullOrEmpty(encryptedCodes);
+        }
+
+        /**
+         * Gets the number of separator-delimited parts of the decrypted secret.
+         *
+         * @return the part count, or 0 if no secret is stored
+         */
+        public int getSecretPartsCount() {
+            return secretParts == null ? 0 : secretParts.length;
+        }
+
+        /**
+         * Gets the shared secret without its timestamp.
+         *
+         * @return the secret, or null if no secret is stored
+         */
+        public String getSecret() {
+            return secretParts == null ? null : secretParts[TwoFactorAuthConstants.SECRET_VALUE_INDEX];
+        }
+
+        /**
+         * Gets the generalized-time timestamp stored with the secret.
+         *
+         * @return the timestamp, or null for legacy secrets or when no secret is stored
+         */
+        public String getSecretTimestamp() {
+            if (secretParts == null || secretParts.length != TwoFactorAuthConstants.SECRET_PARTS_COUNT) {
+                return null;
+            }
+            return secretParts[TwoFactorAuthConstants.SECRET_TIMESTAMP_INDEX];
+        }
+
+        /**
+         * Gets the shared secret decoded into an HMAC key.
+         * The secret is decoded once and reused until the encoding changes.
+         *
+         * @param encoding the encoding the secret was generated with
+         * @return the decoded key, or null if no secret is stored
+         */
+        public SecretKeySpec getSecretKey(Encoding encoding) {
+            String secret = getSecret();
+            if (secret == null) {
+                return null;
+            }
+            DecodedKey key = decodedKey;
+            if (key == null || key.encoding != encoding) {
+                key = new DecodedKey(encoding, toSecretKey(secret, encoding));
+                decodedKey = key;
+            }
+            return key.key;
+        }
+
+        /**
+         * Gets the decrypted scratch codes.
+         *
+         * @return an unmodifiable list, empty if no codes are stored or they are hashed
+         * @throws ServiceException if the codes cannot be decrypted
+         */
+        public List<String> getScratchCodes() throws ServiceException {
+            List<String> codes = scratchCodes;
+            if (codes == null) {
+                if (!hasStoredScratchCodes() || HashedScratchCodes.isHashed(encryptedCodes)) {
+                    // Hashed codes cannot be read back
+                    codes = Collections.emptyList();
+                } else {
+                    String commaSeparatedCodes = DataSource.decryptData(accountId, encryptedCodes);
+                    String[] parts = commaSeparatedCodes.split(TwoFactorAuthConstants.SCRATCH_CODE_SEPARATOR);
+                    List<String> codeList = new ArrayList<String>(parts.length);
+                    Collections.addAll(codeList, parts);
+                    codes = Collections.unmodifiableList(codeList);
+                }
+                scratchCodes = codes;
+            }
+            return codes;
+        }
+    }
+
+    private static final class DecodedKey {
+        private final Encoding encoding;
+        private final SecretKeySpec key;
+
+        private DecodedKey(Encoding encoding, SecretKeySpec key) {
+            this.encoding = encoding;
+            this.key = key;
+        }
+    }
+}
@@ -21,7 +21,8 @@ package com.btactic.twofactorauth.credentials;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -39,7 +40,8 @@ import com.zimbra.common.service.ServiceException;
  *
  * <p>Security Features:
  * <ul>
- *   <li>Uses default SecureRandom (not deprecated SHA1PRNG)</li>
+ *   <li>Uses one shared, pre-seeded default SecureRandom (not deprecated SHA1PRNG)</li>
+ *   <li>Draws the bytes of a whole credential set at once</li>
  *   <li>Masks bytes to ensure compatibility with Base32/Base64 encoding</li>
  *   <li>Generates unique scratch codes (no duplicates)</li>
  *   <li>Supports configurable encoding schemes (BASE32, BASE64)</li>
@@ -48,8 +50,14 @@ import com.zimbra.common.service.ServiceException;
  * @author BTACTIC
  */
 public class CredentialGenerator {
+    // SecureRandom is thread-safe; seeding it once here keeps the first
+    // enrollment from paying for it
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    static {
+        SECURE_RANDOM.nextBytes(new byte[1]);
+    }
+
     private final CredentialConfig config;
-    private final SecureRandom secureRandom;
 
     /**
      * Creates a new credential generator with the specified configuration.
@@ -78,14 +86,12 @@ public class CredentialGenerator {
         }
 
         this.config = config;
-        // Use default SecureRandom implementation (more secure than SHA1PRNG)
-        this.secureRandom = new SecureRandom();
     }
 
     /**
-     * Generates cryptographically secure random bytes.
-     * Uses the default SecureRandom implementation which is more secure
-     * than the deprecated SHA1PRNG algorithm.
+     * Generates cryptographically secure random bytes from the shared
+     * SecureRandom, the default implementation rather than the deprecated
+     * SHA1PRNG algorithm.
      *
      * @param n number of bytes to generate
      * @return array of random bytes
@@ -96,7 +102,7 @@ public class CredentialGenerator {
             throw new IllegalArgumentException("Number of bytes must be positive, got: " + n);
         }
         byte[] bytes = new byte[n];
-        secureRandom.nextBytes(bytes);
+        SECURE_RANDOM.nextBytes(bytes);
         return bytes;
     }
 
@@ -117,44 +123,56 @@ public class CredentialGenerator {
 
     /**
      * Generates a complete set of TOTP credentials including shared secret
-     * and backup scratch codes.
+     * and backup scratch codes. The secret and all scratch codes come from
+     * a single random draw.
      *
      * @return new TOTP credentials with encoded secret and scratch codes
      * @throws ServiceException if credential generation fails
      */
     public TOTPCredentials generateCredentials() throws ServiceException {
-        byte[] secretBytes = generateBytes(config.getBytesPerSecret());
-        String encoded = encodeBytes(mask(secretBytes), config.getEncoding());
-        List<String> scratchCodes = generateScratchCodes();
+        int secretLength = config.getBytesPerSecret();
+        byte[] bytes = generateBytes(secretLength + config.getNumScratchCodes() * config.getBytesPerScratchCode());
+        String encoded = encodeBytes(mask(Arrays.copyOfRange(bytes, 0, secretLength)), config.getEncoding());
+        List<String> scratchCodes = toScratchCodes(bytes, secretLength);
         return new TOTPCredentials(encoded, scratchCodes);
     }
 
     /**
      * Generates a list of unique scratch codes for backup authentication.
      * Scratch codes are one-time use codes that can be used when TOTP is unavailable.
-     * Uses a Set to ensure no duplicate codes are generated.
+     * All codes come from a single random draw.
      *
      * @return list of unique scratch codes
      * @throws ServiceException if scratch code generation fails
      */
     public List<String> generateScratchCodes() throws ServiceException {
-        Set<String> scratchCodeSet = new HashSet<String>();
-        while (scratchCodeSet.size() < config.getNumScratchCodes()) {
-            scratchCodeSet.add(generateScratchCode());
+        if (config.getNumScratchCodes() == 0) {
+            return new ArrayList<String>();
         }
-        List<String> scratchCodes = new ArrayList<String>(scratchCodeSet.size());
-        scratchCodes.addAll(scratchCodeSet);
-        return scratchCodes;
+        return toScratchCodes(generateBytes(config.getNumScratchCodes() * config.getBytesPerScratchCode()), 0);
     }
 
     /**
-     * Generates a single scratch code using the configured length and encoding.
+     * Splits random bytes into scratch codes. A Set keeps the codes unique;
+     * the rare duplicate is replaced with a separately drawn code.
      *
-     * @return a single encoded scratch code
-     * @throws ServiceException if scratch code generation fails
+     * @param bytes the random bytes
+     * @param offset the index of the first scratch code byte
+     * @return list of unique scratch codes
      */
-    private String generateScratchCode() throws ServiceException {
-        byte[] randomBytes = generateBytes(config.getBytesPerScratchCode());
+    private List<String> toScratchCodes(byte[] bytes, int offset) {
+        int codeLength = config.getBytesPerScratchCode();
+        Set<String> scratchCodeSet = new LinkedHashSet<String>();
+        for (int pos = offset; pos + codeLength <= bytes.length; pos += codeLength) {
+            scratchCodeSet.add(encodeScratchCode(Arrays.copyOfRange(bytes, pos, pos + codeLength)));
+        }
+        while (scratchCodeSet.size() < config.getNumScratchCodes()) {
+            scratchCodeSet.add(encodeScratchCode(generateBytes(codeLength)));
+        }
+        return new ArrayList<String>(scratchCodeSet);
+    }
+
+    private String encodeScratchCode(byte[] randomBytes) {
         return encodeBytes(mask(randomBytes), config.getScratchCodeEncoding());
     }
 
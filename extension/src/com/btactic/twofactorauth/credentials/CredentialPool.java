@@ -0,0 +1,143 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.credentials;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+import com.btactic.twofactorauth.core.TwoFactorAuthTasks;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.auth.twofactor.TwoFactorAuth.CredentialConfig;
+
+/**
+ * Bounded pool of pre-generated TOTP credentials, one per credential
+ * shape (secret length, scratch code length and count, encodings).
+ * Enrollment takes a ready set instead of generating one, and every take
+ * schedules a background refill, so enrollment waves do not wait on
+ * random number generation.
+ *
+ * <p>Pooled credentials only live in memory, are handed out once and get
+ * their timestamp when taken. When a pool is empty, or the pool size
+ * {@code twofactorauth_credential_pool_size} is 0, credentials are
+ * generated inline.
+ *
+ * @author BTACTIC
+ */
+public final class CredentialPool {
+
+    private static final CredentialPool INSTANCE = new CredentialPool(
+        TwoFactorAuthLocalConfig.getInt(TwoFactorAuthConstants.LC_CREDENTIAL_POOL_SIZE,
+            TwoFactorAuthConstants.DEFAULT_CREDENTIAL_POOL_SIZE));
+
+    private final int capacity;
+    private final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+
+    private CredentialPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static CredentialPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Takes a credential set for the given configuration.
+     *
+     * @param config the credential configuration
+     * @return new TOTP credentials, pre-generated if available
+     * @throws ServiceException if credentials have to be generated inline and that fails
+     */
+    public TOTPCredentials take(CredentialConfig config) throws ServiceException {
+        if (capacity <= 0) {
+            return new CredentialGenerator(config).generateCredentials();
+        }
+        Shape shape = shape(config);
+        TOTPCredentials pooled = shape.ready.poll();
+        refill(shape);
+        if (pooled == null) {
+            return new CredentialGenerator(config).generateCredentials();
+        }
+        // Stamp the credentials with the time they are handed out
+        return new TOTPCredentials(pooled.getSecret(), pooled.getScratchCodes());
+    }
+
+    private Shape shape(CredentialConfig config) {
+        String key = config.getBytesPerSecret() + ":" + config.getBytesPerScratchCode() + ":"
+            + config.getNumScratchCodes() + ":" + config.getEncoding() + ":" + config.getScratchCodeEncoding();
+        Shape shape = shapes.get(key);
+        if (shape == null) {
+            shape = new Shape(config, capacity);
+            Shape existing = shapes.putIfAbsent(key, shape);
+            if (existing != null) {
+                shape = existing;
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Tops up a pool in the background unless it is full or a refill is
+     * already running.
+     */
+    private void refill(final Shape shape) {
+        if (shape.ready.remainingCapacity() == 0 || !shape.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            TwoFactorAuthTasks.execute("credential-pool-refill", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        CredentialGenerator generator = new CredentialGenerator(shape.config);
+                        while (shape.ready.remainingCapacity() > 0) {
+                            if (!shape.ready.offer(generator.generateCredentials())) {
+                                break;
+                            }
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.account.warn("cannot pre-generate two-factor auth credentials", e);
+                    } finally {
+                        shape.refilling.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            shape.refilling.set(false);
+        }
+    }
+
+    private static final class Shape {
+        private final CredentialConfig config;
+        private final BlockingQueue<TOTPCredentials> ready;
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        private Shape(CredentialConfig config, int capacity) {
+            this.config = config;
+            this.ready = new ArrayBlockingQueue<TOTPCredentials>(capacity);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.credentials;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+import com.zimbra.cs.account.Account;
+
+/**
+ * In-memory store of app enrollments that have been started but not yet
+ * verified. The first phase of {@code EnableTwoFactorAuth} keeps the
+ * generated credentials here, together with the
+ * {@code ENABLE_TWO_FACTOR_AUTH} auth token returned to the client, and
+ * nothing is written to LDAP until a TOTP code for them has been verified.
+ * Abandoned enrollments simply expire.
+ *
+ * <p>The store is local to one server, so {@code EnableTwoFactorAuth} is
+ * proxied to the account's home server and both phases of an enrollment
+ * are served there. An enrollment lost to a restart has to be started
+ * again. There is at most one pending enrollment per account; starting the
+ * wizard again replaces it.
+ *
+ * @author BTACTIC
+ */
+public final class PendingEnrollments {
+
+    private static final PendingEnrollments INSTANCE = new PendingEnrollments();
+
+    private final Cache<String, Pending> pending;
+
+    private PendingEnrollments() {
+        int maxSize = TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_PENDING_ENROLLMENT_CACHE_SIZE,
+            TwoFactorAuthConstants.DEFAULT_PENDING_ENROLLMENT_CACHE_SIZE);
+        long ttl = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_PENDING_ENROLLMENT_TTL,
+            TwoFactorAuthConstants.DEFAULT_PENDING_ENROLLMENT_TTL);
+        pending = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public static PendingEnrollments getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a started enrollment.
+     *
+     * @param account the enrolling account
+     * @param authToken the encoded enrollment auth token handed to the client
+     * @param credentials the generated credentials
+     */
+    public void put(Account account, String authToken, TOTPCredentials credentials) {
+        pending.put(account.getId(), new Pending(authToken, credentials));
+    }
+
+    /**
+     * Gets the pending enrollment of an account. When the verification
+     * request carries the enrollment auth token it must be the one the
+     * enrollment was started with.
+     *
+     * @param account the enrolling account
+     * @param authToken the encoded auth token sent back by the client, or null
+     *                  if the request was authenticated with the password
+     * @return the pending credentials, or null if there are none
+     */
+    public TOTPCredentials get(Account account, String authToken) {
+        Pending entry = pending.getIfPresent(account.getId());
+        if (entry == null || (authToken != null && !Objects.equal(entry.authToken, authToken))) {
+            return null;
+        }
+        return entry.credentials;
+    }
+
+    /**
+     * Drops the pending enrollment of an account, once it has been stored
+     * or the account's 2FA data was cleared.
+     *
+     * @param account the account
+     */
+    public void remove(Account account) {
+        pending.invalidate(account.getId());
+    }
+
+    private static final class Pending {
+        private final String authToken;
+        private final TOTPCredentials credentials;
+
+        private Pending(String authToken, TOTPCredentials credentials) {
+            this.authToken = authToken;
+            this.credentials = credentials;
+        }
+    }
+}
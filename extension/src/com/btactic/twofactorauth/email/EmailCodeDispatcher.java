@@ -0,0 +1,256 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.email;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Sends two-factor auth code emails off the SOAP request thread.
+ * Messages go to a bounded queue served by a small worker pool; a failed
+ * send is retried with exponential backoff, timed by a scheduler of the
+ * dispatcher's own so retries never wait behind unrelated background
+ * work. When the queue is full the
+ * message is rejected right away, so callers can report the code as not
+ * sent instead of waiting on a slow MTA.
+ *
+ * <p>Queue depth, per-send latency and the number of sent, failed,
+ * retried and dropped messages are exposed for monitoring.
+ *
+ * @author BTACTIC
+ */
+public final class EmailCodeDispatcher {
+
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10L;
+
+    private static final EmailCodeDispatcher INSTANCE = new EmailCodeDispatcher();
+
+    private final int workers;
+    private final int queueSize;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private ThreadPoolExecutor executor;
+    private ScheduledThreadPoolExecutor retryScheduler;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sendNanos = new AtomicLong();
+    private final AtomicLong maxSendNanos = new AtomicLong();
+
+    private EmailCodeDispatcher() {
+        workers = Math.max(1, TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_EMAIL_WORKERS, TwoFactorAuthConstants.DEFAULT_EMAIL_WORKERS));
+        queueSize = Math.max(1, TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_EMAIL_QUEUE_SIZE, TwoFactorAuthConstants.DEFAULT_EMAIL_QUEUE_SIZE));
+        maxAttempts = Math.max(1, TwoFactorAuthLocalConfig.getInt(
+            TwoFactorAuthConstants.LC_EMAIL_MAX_ATTEMPTS, TwoFactorAuthConstants.DEFAULT_EMAIL_MAX_ATTEMPTS));
+        retryDelay = TwoFactorAuthLocalConfig.getLong(
+            TwoFactorAuthConstants.LC_EMAIL_RETRY_DELAY, TwoFactorAuthConstants.DEFAULT_EMAIL_RETRY_DELAY);
+    }
+
+    public static EmailCodeDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            executor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), newDaemonThreadFactory("TwoFactorAuthEmail"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getRetryScheduler() {
+        if (executor == null || executor.isShutdown()) {
+            throw new RejectedExecutionException("two-factor auth email dispatcher is shut down");
+        }
+        if (retryScheduler == null || retryScheduler.isShutdown()) {
+            retryScheduler = new ScheduledThreadPoolExecutor(1, newDaemonThreadFactory("TwoFactorAuthEmailRetry"));
+            // Retries still waiting at shutdown are dropped
+            retryScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        return retryScheduler;
+    }
+
+    /**
+     * Queues a message for delivery.
+     *
+     * @param message the message to send
+     * @return true if the message was queued, false if the queue is full
+     */
+    public boolean submit(EmailCodeMessage message) {
+        if (!enqueue(new Delivery(message))) {
+            ZimbraLog.account.warn("two-factor auth email queue is full, code for account %s not sent",
+                message.getAccount().getName());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean enqueue(Delivery delivery) {
+        try {
+            getExecutor().execute(delivery);
+            return true;
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the workers, giving queued messages a short time to be sent.
+     */
+    public synchronized void shutdown() {
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+            retryScheduler = null;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    public synchronized int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRetryCount() {
+        return retried.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the average duration of a send attempt.
+     *
+     * @return the average latency in milliseconds, 0 if nothing was sent yet
+     */
+    public long getAverageSendLatency() {
+        long attempts = sent.get() + failed.get() + retried.get();
+        return attempts == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(sendNanos.get() / attempts);
+    }
+
+    /**
+     * Gets the longest send attempt so far.
+     *
+     * @return the maximum latency in milliseconds
+     */
+    public long getMaxSendLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(maxSendNanos.get());
+    }
+
+    private void recordLatency(long nanos) {
+        sendNanos.addAndGet(nanos);
+        long max = maxSendNanos.get();
+        while (nanos > max && !maxSendNanos.compareAndSet(max, nanos)) {
+            max = maxSendNanos.get();
+        }
+    }
+
+    private final class Delivery implements Runnable {
+        private final EmailCodeMessage message;
+        private int attempt;
+
+        private Delivery(EmailCodeMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            attempt++;
+            long start = System.nanoTime();
+            try {
+                message.send();
+                recordLatency(System.nanoTime() - start);
+                sent.incrementAndGet();
+                ZimbraLog.account.debug("two-factor auth email code sent to %s in %d ms",
+                    message.getToEmail(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (ServiceException | RuntimeException e) {
+                // Runtime failures (javax.mail, missing domain or locale) count and retry like any other
+                recordLatency(System.nanoTime() - start);
+                if (attempt < maxAttempts && retryLater()) {
+                    retried.incrementAndGet();
+                    ZimbraLog.account.info("sending two-factor auth email code to %s failed, retrying (attempt %d of %d): %s",
+                        message.getToEmail(), attempt, maxAttempts, e.toString());
+                } else {
+                    failed.incrementAndGet();
+                    ZimbraLog.account.warn("cannot send two-factor auth email code to " + message.getToEmail(), e);
+                }
+            }
+        }
+
+        /**
+         * Schedules the next attempt, doubling the delay each time. The
+         * retry scheduler only puts the delivery back in the queue.
+         */
+        private boolean retryLater() {
+            long delay = retryDelay << (attempt - 1);
+            try {
+                getRetryScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!enqueue(Delivery.this)) {
+                            ZimbraLog.account.warn("two-factor auth email queue is full, dropping retry for %s",
+                                message.getToEmail());
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+}
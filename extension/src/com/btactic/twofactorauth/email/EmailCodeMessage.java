@@ -0,0 +1,135 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.email;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.util.AccountUtil;
+
+/**
+ * An email carrying a two-factor auth code. The MIME message is rebuilt on
+ * every delivery attempt, so that a retry gets a new SMTP session and can
+ * move on to another of the account's SMTP hosts.
+ *
+ * @author BTACTIC
+ */
+public class EmailCodeMessage {
+    private static final boolean DIRECT_SMTP = TwoFactorAuthLocalConfig.getBoolean(
+        TwoFactorAuthConstants.LC_EMAIL_DIRECT_SMTP, true);
+
+    private final Account account;
+    private final String toEmail;
+    private final String code;
+    private final long expiryTime;
+
+    /**
+     * Creates a message for a code that has already been stored.
+     *
+     * @param account the account the code belongs to
+     * @param toEmail the recovery address to send it to
+     * @param code the email code
+     * @param expiryTime when the code expires, in milliseconds since the epoch
+     */
+    public EmailCodeMessage(Account account, String toEmail, String code, long expiryTime) {
+        this.account = account;
+        this.toEmail = toEmail;
+        this.code = code;
+        this.expiryTime = expiryTime;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public String getToEmail() {
+        return toEmail;
+    }
+
+    /**
+     * Sends the message. By default it goes straight to the SMTP transport
+     * configured for the account, which neither loads the account's mailbox
+     * nor saves a copy to Sent; with {@code twofactorauth_email_direct_smtp}
+     * disabled it is sent through the mailbox's MailSender as before. The
+     * time each attempt takes shows up as {@code avgMs}/{@code maxMs} in the
+     * {@code emailQueue} part of the periodic stats line, which is how the two
+     * paths can be compared on a given server.
+     *
+     * @throws ServiceException if the message cannot be built or sent
+     */
+    public void send() throws ServiceException {
+        try {
+            MimeMessage mimeMessage = build();
+            if (DIRECT_SMTP) {
+                // The message was created on the account's SMTP session
+                Transport.send(mimeMessage);
+            } else {
+                // Inspired from sendAndStoreTwoFactorAuthAccountCode function from EmailChannel.java file
+                Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(account.getId(), false);
+                OperationContext octxt = new OperationContext(account);
+                mbox.getMailSender().sendMimeMessage(octxt, mbox, false, mimeMessage, null, null, null, null, false);
+            }
+        } catch (MessagingException e) {
+            ZimbraLog.misc.warn("Failed to send two-factor auth email code to email ID: '"
+                    + toEmail + "'", e);
+            throw ServiceException.FAILURE("Failed to send two-factor auth email code to email ID: "
+                    + toEmail, e);
+        }
+    }
+
+    private MimeMessage build() throws MessagingException, ServiceException {
+        String ownerAcctDisplayName = account.getDisplayName();
+        if (ownerAcctDisplayName == null) {
+            ownerAcctDisplayName = account.getName();
+        }
+        String charset = account.getAttr(Provisioning.A_zimbraPrefMailDefaultCharset, MimeConstants.P_CHARSET_UTF8);
+        EmailCodeTemplates.Templates templates = EmailCodeTemplates.getInstance().get(account);
+        String dateTime = templates.formatExpiry(expiryTime);
+        if (ZimbraLog.misc.isDebugEnabled()) {
+            ZimbraLog.misc.debug(
+                    "TwoFactorAuth:EmailCodeMessage:build: Expiry of two-factor auth email address verification code sent to %s: %s",
+                    toEmail, dateTime);
+            ZimbraLog.misc.debug(
+                    "TwoFactorAuth:EmailCodeMessage:build: Last 3 characters of two-factor auth email verification code sent to %s: %s",
+                    toEmail,
+                    code.substring(5));
+        }
+
+        String subject = templates.formatSubject(ownerAcctDisplayName);
+        String mimePartText = templates.formatText(code, dateTime);
+        String mimePartHtml = templates.formatHtml(code, dateTime);
+
+        MimeMultipart mmp = AccountUtil.generateMimeMultipart(mimePartText, mimePartHtml, null);
+        return AccountUtil.generateMimeMessage(account, account, subject, charset, null, null,
+                toEmail, mmp);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.email;
+
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.L10nUtil;
+import com.zimbra.common.util.L10nUtil.MsgKey;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Config;
+import com.zimbra.cs.account.Domain;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.calendar.Util;
+
+/**
+ * Cache of compiled two-factor auth code email templates, keyed by domain,
+ * locale and time zone. Each entry holds the parsed subject, text and HTML
+ * formats and the expiry date formatter.
+ *
+ * <p>A template comes from the domain's {@code zimbraTwoFactorCodeEmail*}
+ * attribute, else the global config's, else the localized default. Entries
+ * remember the attribute values they were compiled from and are rebuilt
+ * when the domain or global config value changes.
+ *
+ * @author BTACTIC
+ */
+public final class EmailCodeTemplates {
+
+    private static final String[] ATTRS = {
+        "zimbraTwoFactorCodeEmailSubject",
+        "zimbraTwoFactorCodeEmailBodyText",
+        "zimbraTwoFactorCodeEmailBodyHtml"
+    };
+    private static final MsgKey[] DEFAULT_KEYS = {
+        MsgKey.twoFactorAuthCodeEmailSubject,
+        MsgKey.twoFactorAuthCodeEmailBodyText,
+        MsgKey.twoFactorAuthCodeEmailBodyHtml
+    };
+    private static final int SUBJECT = 0;
+    private static final int TEXT = 1;
+    private static final int HTML = 2;
+    private static final String DATE_PATTERN = "EEE, d MMM yyyy HH:mm:ss z";
+
+    private static final EmailCodeTemplates INSTANCE = new EmailCodeTemplates();
+
+    private final Cache<String, Templates> cache;
+
+    private EmailCodeTemplates() {
+        cache = CacheBuilder.newBuilder()
+            .maximumSize(TwoFactorAuthLocalConfig.getInt(
+                TwoFactorAuthConstants.LC_EMAIL_TEMPLATE_CACHE_SIZE,
+                TwoFactorAuthConstants.DEFAULT_EMAIL_TEMPLATE_CACHE_SIZE))
+            .build();
+    }
+
+    public static EmailCodeTemplates getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the templates for an account.
+     *
+     * @param account the account the email is sent for
+     * @return the compiled templates
+     * @throws ServiceException if the domain or global config cannot be read
+     */
+    public Templates get(Account account) throws ServiceException {
+        Provisioning prov = account.getProvisioning();
+        Domain domain = prov.getDomain(account);
+        Config config = Provisioning.getInstance().getConfig();
+        String[] sources = new String[ATTRS.length];
+        for (int i = 0; i < ATTRS.length; i++) {
+            String value = domain == null ? null : domain.getAttr(ATTRS[i]);
+            if (Strings.isNullOrEmpty(value)) {
+                value = config.getAttr(ATTRS[i], null);
+            }
+            sources[i] = Strings.emptyToNull(value);
+        }
+        Locale locale = account.getLocale();
+        TimeZone timeZone = TimeZone.getTimeZone(Util.getAccountTimeZone(account).getID());
+        String key = (domain == null ? "" : domain.getId()) + "|" + locale + "|" + timeZone.getID();
+        Templates templates = cache.getIfPresent(key);
+        if (templates == null || !Arrays.equals(templates.sources, sources)) {
+            templates = new Templates(sources, locale, timeZone);
+            cache.put(key, templates);
+        }
+        return templates;
+    }
+
+    /**
+     * Compiled templates for one domain, locale and time zone. The formats
+     * are not thread-safe, so each use synchronizes on its format.
+     */
+    public static final class Templates {
+        private final String[] sources;
+        private final MessageFormat[] formats = new MessageFormat[ATTRS.length];
+        private final DateFormat dateFormat;
+
+        private Templates(String[] sources, Locale locale, TimeZone timeZone) {
+            this.sources = sources;
+            for (int i = 0; i < ATTRS.length; i++) {
+                String pattern = sources[i] != null ? sources[i] : L10nUtil.getMessage(DEFAULT_KEYS[i], locale);
+                formats[i] = new MessageFormat(pattern);
+            }
+            dateFormat = new SimpleDateFormat(DATE_PATTERN);
+            dateFormat.setTimeZone(timeZone);
+        }
+
+        public String formatExpiry(long expiryTime) {
+            synchronized (dateFormat) {
+                return dateFormat.format(expiryTime);
+            }
+        }
+
+        public String formatSubject(String displayName) {
+            return format(SUBJECT, displayName);
+        }
+
+        public String formatText(String code, String dateTime) {
+            return format(TEXT, code, dateTime);
+        }
+
+        public String formatHtml(String code, String dateTime) {
+            return format(HTML, code, dateTime);
+        }
+
+        private String format(int template, Object... args) {
+            MessageFormat format = formats[template];
+            synchronized (format) {
+                return format.format(args);
+            }
+        }
+    }
+}
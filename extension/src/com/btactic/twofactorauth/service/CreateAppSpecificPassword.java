@@ -27,6 +27,7 @@ import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
 import com.zimbra.cs.account.AppSpecificPassword;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 import com.btactic.twofactorauth.app.ZetaAppSpecificPasswords;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -37,14 +38,23 @@ public class CreateAppSpecificPassword extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
         String appName = request.getAttribute(AccountConstants.A_APP_NAME);
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth();
         if (!manager.twoFactorAuthEnabled()) {
             throw AuthFailedServiceException.AUTH_FAILED("two-factor authentication must be enabled");
         }
-        ZetaAppSpecificPasswords appManager = new ZetaAppSpecificPasswords(account);
+        ZetaAppSpecificPasswords appManager = TwoFactorSession.get(account).getAppSpecificPasswords();
         AppSpecificPassword password = appManager.generatePassword(appName);
         CreateAppSpecificPasswordResponse response = new CreateAppSpecificPasswordResponse();
         response.setPassword(password.getPassword());
@@ -26,6 +26,7 @@ import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 import com.btactic.twofactorauth.app.ZetaAppSpecificPasswords;
 import com.zimbra.soap.account.message.DisableTwoFactorAuthResponse;
@@ -36,6 +37,15 @@ public class DisableTwoFactorAuth extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
 
         Element methodEl = request.getOptionalElement(AccountConstants.E_METHOD);
         String method = null;
@@ -58,7 +68,7 @@ public class DisableTwoFactorAuth extends AccountDocumentHandler {
 
         ZimbraSoapContext zsc = AccountDocumentHandler.getZimbraSoapContext(context);
         Account account = AccountDocumentHandler.getRequestedAccount(zsc);
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth();
         DisableTwoFactorAuthResponse response = new DisableTwoFactorAuthResponse();
         manager.disableTwoFactorAuthEmail();
         return zsc.jaxbToElement(response);
@@ -70,7 +80,7 @@ public class DisableTwoFactorAuth extends AccountDocumentHandler {
 
         ZimbraSoapContext zsc = AccountDocumentHandler.getZimbraSoapContext(context);
         Account account = AccountDocumentHandler.getRequestedAccount(zsc);
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth();
         DisableTwoFactorAuthResponse response = new DisableTwoFactorAuthResponse();
         manager.disableTwoFactorAuthApp(true);
         return zsc.jaxbToElement(response);
@@ -19,6 +19,8 @@
  */
 package com.btactic.twofactorauth.service;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -36,7 +38,10 @@ import com.zimbra.cs.account.AuthToken;
 import com.zimbra.cs.account.AuthToken.Usage;
 import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
 import com.zimbra.cs.account.auth.AuthContext.Protocol;
+import com.btactic.twofactorauth.TwoFactorSession;
+import com.btactic.twofactorauth.credentials.PendingEnrollments;
 import com.btactic.twofactorauth.credentials.TOTPCredentials;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 import com.btactic.twofactorauth.ZetaScratchCodes;
@@ -59,7 +64,16 @@ import com.zimbra.cs.service.account.AccountDocumentHandler;
 public class EnableTwoFactorAuth extends AccountDocumentHandler {
 
     @Override
-    public Element handle(Element request, Map<String, Object> context)
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context)
             throws ServiceException {
         Element methodEl = request.getOptionalElement(AccountConstants.E_METHOD);
         String method = null;
@@ -93,7 +107,7 @@ public class EnableTwoFactorAuth extends AccountDocumentHandler {
                 false
             );
         }
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account, acctNamePassedIn);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth(acctNamePassedIn);
 
         if (!manager.isAllowedMethod(AccountConstants.E_TWO_FACTOR_METHOD_EMAIL)) {
             throw new TwoFactorSetupException(
@@ -128,11 +142,11 @@ public class EnableTwoFactorAuth extends AccountDocumentHandler {
           sendCode(email,context);
         } else if (twoFactorCode != null) {
           validateCode(twoFactorCode, context);
+          ZetaTwoFactorAuth.Transition transition = manager.beginTransition();
           if (!(account.isTwoFactorAuthEnabled())) {
-              manager.generateCredentials();
-              manager.enableTwoFactorAuth();
+              transition.storeCredentials(manager.generateNewCredentials()).enable();
           }
-          manager.addEnabledMethod(AccountConstants.E_TWO_FACTOR_METHOD_EMAIL);
+          transition.addMethod(AccountConstants.E_TWO_FACTOR_METHOD_EMAIL).commit();
         } else {
           throw ServiceException.FAILURE("Non supported wizard input.", null);
         }
@@ -248,7 +262,7 @@ public class EnableTwoFactorAuth extends AccountDocumentHandler {
             );
         }
 
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account, acctNamePassedIn);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth(acctNamePassedIn);
         if (!manager.isAllowedMethod(AccountConstants.E_TWO_FACTOR_METHOD_APP)) {
             throw new TwoFactorSetupException(
                 "App-based 2FA method is not allowed for this account",
@@ -276,17 +290,21 @@ public class EnableTwoFactorAuth extends AccountDocumentHandler {
         if (manager.isEnabledMethod(AccountConstants.E_TWO_FACTOR_METHOD_APP)) {
             encodeAlreadyEnabled(response);
         } else {
-            if (!account.isTwoFactorAuthEnabled()) {
-                manager.generateCredentials();
-            }
-            response.setSecret(manager.loadSharedSecret());
+            String token;
             try {
-                String token = AuthProvider.getAuthToken(account, Usage.ENABLE_TWO_FACTOR_AUTH).getEncoded();
-                com.zimbra.soap.account.type.AuthToken at = new com.zimbra.soap.account.type.AuthToken(token, false);
-                response.setAuthToken(at);
+                token = AuthProvider.getAuthToken(account, Usage.ENABLE_TWO_FACTOR_AUTH).getEncoded();
             } catch (AuthTokenException e) {
                 throw ServiceException.FAILURE("cannot generate auth token", e);
             }
+            if (!account.isTwoFactorAuthEnabled()) {
+                // Keep the credentials in memory until a code for them is verified
+                TOTPCredentials credentials = manager.generateNewCredentials();
+                PendingEnrollments.getInstance().put(account, token, credentials);
+                response.setSecret(credentials.getSecret());
+            } else {
+                response.setSecret(manager.loadSharedSecret());
+            }
+            response.setAuthToken(new com.zimbra.soap.account.type.AuthToken(token, false));
         }
     }
 
@@ -370,6 +388,15 @@ public class EnableTwoFactorAuth extends AccountDocumentHandler {
         ZetaTwoFactorAuth manager = (ZetaTwoFactorAuth) validation[1];
         String acctNamePassedIn = (String) validation[2];
 
+        // Pending enrollments are only kept in memory on the account's home server
+        if (!Provisioning.onLocalServer(account)) {
+            Server server = Provisioning.getInstance().getServer(account);
+            if (server == null) {
+                throw ServiceException.FAILURE("cannot find home server of account " + account.getName(), null);
+            }
+            return proxyRequest(request, context, server);
+        }
+
         EnableTwoFactorAuthResponse response = new EnableTwoFactorAuthResponse();
 
         // Extract password from request
@@ -385,22 +412,42 @@ public class EnableTwoFactorAuth extends AccountDocumentHandler {
         } else {
             // Verification phase: verify TOTP code and activate 2FA
             authenticateRequest(request, account, password);
-            manager.authenticateTOTP(twoFactorCode.getText());
-
-            if (!account.isTwoFactorAuthEnabled()) {
-                manager.enableTwoFactorAuth();
+            Element authTokenEl = request.getOptionalElement(AccountConstants.E_AUTH_TOKEN);
+            TOTPCredentials pending = PendingEnrollments.getInstance().get(account,
+                authTokenEl == null ? null : authTokenEl.getText());
+            ZetaTwoFactorAuth.Transition transition = manager.beginTransition();
+            List<String> scratchCodes;
+            if (pending != null) {
+                manager.authenticateTOTP(twoFactorCode.getText(), pending);
+                scratchCodes = new ArrayList<String>(pending.getScratchCodes());
+                transition.storeCredentials(pending);
+            } else if (manager.loadSharedSecret() == null) {
+                // The pending enrollment expired or the server restarted since setup started
+                throw new TwoFactorSetupException(
+                    "two-factor auth enrollment expired, restart setup",
+                    account.getName(),
+                    acctNamePassedIn,
+                    "verification"
+                );
+            } else {
+                // Nothing pending, e.g. 2FA was already enabled by email: use the stored secret
+                manager.authenticateTOTP(twoFactorCode.getText());
+                // Read the scratch codes before they may be replaced by their hashes
+                ZetaScratchCodes scratchCodesManager = TwoFactorSession.get(account).getScratchCodes();
+                scratchCodes = new ArrayList<String>(scratchCodesManager.getCodes());
             }
-            manager.addEnabledMethod(AccountConstants.E_TWO_FACTOR_METHOD_APP);
 
-            // Return scratch codes
-            ZetaScratchCodes scratchCodesManager = new ZetaScratchCodes(account);
-            response.setScratchCodes(scratchCodesManager.getCodes());
+            // Store the credentials, enable the method and update token validity in one write
+            transition
+                .enable()
+                .addMethod(AccountConstants.E_TWO_FACTOR_METHOD_APP)
+                .hashScratchCodes(scratchCodes)
+                .invalidateAuthTokens()
+                .commit();
+            PendingEnrollments.getInstance().remove(account);
 
-            // Update token validity
-            int tokenValidityValue = account.getAuthTokenValidityValue();
-            account.setAuthTokenValidityValue(
-                tokenValidityValue == Integer.MAX_VALUE ? 0 : tokenValidityValue + 1
-            );
+            // Return scratch codes
+            response.setScratchCodes(scratchCodes);
 
             // Generate and encode final auth token
             generateFinalAuthToken(account, context, response);
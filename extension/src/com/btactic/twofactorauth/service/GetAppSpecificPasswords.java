@@ -25,6 +25,7 @@ import java.util.Set;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.app.ZetaAppSpecificPasswords;
 import com.btactic.twofactorauth.app.ZetaAppSpecificPasswordData;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -36,11 +37,20 @@ public class GetAppSpecificPasswords extends AccountDocumentHandler {
 
 	@Override
 	public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+		TwoFactorSession.begin();
+		try {
+			return handleInSession(request, context);
+		} finally {
+			TwoFactorSession.end();
+		}
+	}
+
+	private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
 
 		ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
         GetAppSpecificPasswordsResponse response = new GetAppSpecificPasswordsResponse();
-        ZetaAppSpecificPasswords appManager = new ZetaAppSpecificPasswords(account);
+        ZetaAppSpecificPasswords appManager = TwoFactorSession.get(account).getAppSpecificPasswords();
         Set<com.zimbra.cs.account.auth.twofactor.AppSpecificPasswordData> names = appManager.getPasswords();
         encodeResponse(account, response, names);
         return zsc.jaxbToElement(response);
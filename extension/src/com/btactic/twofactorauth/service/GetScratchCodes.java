@@ -25,6 +25,7 @@ import java.util.Map;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaScratchCodes;
 import com.zimbra.soap.ZimbraSoapContext;
 import com.zimbra.soap.account.message.GetScratchCodesResponse;
@@ -34,9 +35,18 @@ public class GetScratchCodes extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
-        ZetaScratchCodes scratchCodesManager = new ZetaScratchCodes(account);
+        ZetaScratchCodes scratchCodesManager = TwoFactorSession.get(account).getScratchCodes();
         if (!scratchCodesManager.twoFactorAuthEnabled()) {
             throw ServiceException.FAILURE("two-factor authentication is not enabled", null);
         }
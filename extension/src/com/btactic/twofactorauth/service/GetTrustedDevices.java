@@ -26,8 +26,10 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AccountServiceException;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevice;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDeviceToken;
+import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevices;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 import com.zimbra.soap.ZimbraSoapContext;
 import com.zimbra.soap.account.message.GetTrustedDevicesResponse;
@@ -37,27 +39,31 @@ public class GetTrustedDevices extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
         GetTrustedDevicesResponse response = new GetTrustedDevicesResponse();
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth();
         if (!manager.twoFactorAuthEnabled()) {
             throw AccountServiceException.TWO_FACTOR_AUTH_REQUIRED();
         }
-        List<ZetaTrustedDevice> devices = manager.getTrustedDevices();
+        ZetaTrustedDevices trustedDevicesManager = TwoFactorSession.get(account).getTrustedDevices();
+        List<ZetaTrustedDevice> devices = trustedDevicesManager.listTrustedDevices();
         ZetaTrustedDeviceToken token = ZetaTrustedDeviceToken.fromRequest(account, request, context);
         boolean thisDeviceTrusted = false;
-        int numOtherTrustedDevices = 0;
-        if (token == null) {
-            numOtherTrustedDevices = devices.size();
-        } else {
-            for (ZetaTrustedDevice td: devices) {
-                if (token.getId().equals(td.getTokenId())) {
-                    thisDeviceTrusted = true;
-                } else {
-                    numOtherTrustedDevices++;
-                }
-            }
+        int numOtherTrustedDevices = devices.size();
+        ZetaTrustedDevice thisDevice = token == null ? null : trustedDevicesManager.getTrustedDevice(token.getId());
+        if (thisDevice != null && !thisDevice.isExpired()) {
+            thisDeviceTrusted = true;
+            numOtherTrustedDevices--;
         }
         response.setThisDeviceTrusted(thisDeviceTrusted);
         response.setNumOtherTrustedDevices(numOtherTrustedDevices);
@@ -38,6 +38,7 @@ import com.zimbra.soap.account.message.SendTwoFactorAuthCodeResponse.SendTwoFact
 import com.zimbra.soap.JaxbUtil;
 import com.zimbra.soap.ZimbraSoapContext;
 
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 
 public class ResetCodeMethod extends TwoFactorAuthMethod {
@@ -52,7 +53,7 @@ public class ResetCodeMethod extends TwoFactorAuthMethod {
         AuthToken at = AuthUtil.getAuthToken(request, zsc);
         Account authTokenAcct = AuthProvider.validateAuthToken(prov, at, false, Usage.TWO_FACTOR_AUTH);
 
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(authTokenAcct);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(authTokenAcct).getTwoFactorAuth();
 
         if (manager.isAllowedMethod(AccountConstants.E_TWO_FACTOR_METHOD_APP)) {
           return SendTwoFactorAuthCodeStatus.RESET_SUCCEEDED;
@@ -25,6 +25,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 import com.btactic.twofactorauth.app.ZetaAppSpecificPasswords;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -34,12 +35,21 @@ import com.zimbra.cs.service.account.AccountDocumentHandler;
 public class RevokeAppSpecificPassword extends AccountDocumentHandler {
 
 	@Override
-	public Element handle(Element request, Map<String, Object> context)
+	public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+		TwoFactorSession.begin();
+		try {
+			return handleInSession(request, context);
+		} finally {
+			TwoFactorSession.end();
+		}
+	}
+
+	private Element handleInSession(Element request, Map<String, Object> context)
 			throws ServiceException {
 		ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
         RevokeAppSpecificPasswordResponse response = new RevokeAppSpecificPasswordResponse();
-        ZetaAppSpecificPasswords appSpecificPasswordsManager = new ZetaAppSpecificPasswords(account);
+        ZetaAppSpecificPasswords appSpecificPasswordsManager = TwoFactorSession.get(account).getAppSpecificPasswords();
         String appName = request.getAttribute(AccountConstants.A_APP_NAME);
         appSpecificPasswordsManager.revoke(appName);
         return zsc.jaxbToElement(response);
@@ -24,6 +24,7 @@ import java.util.Map;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDeviceToken;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevices;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -34,10 +35,19 @@ public class RevokeOtherTrustedDevices extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
         RevokeOtherTrustedDevicesResponse response = new RevokeOtherTrustedDevicesResponse();
-        ZetaTrustedDevices trustedDevicesManager = new ZetaTrustedDevices(account);
+        ZetaTrustedDevices trustedDevicesManager = TwoFactorSession.get(account).getTrustedDevices();
         ZetaTrustedDeviceToken token = ZetaTrustedDeviceToken.fromRequest(account, request, context);
         trustedDevicesManager.revokeOtherTrustedDevices(token);
         return zsc.jaxbToElement(response);
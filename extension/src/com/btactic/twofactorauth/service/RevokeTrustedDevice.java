@@ -28,6 +28,7 @@ import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.ZimbraCookie;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDeviceToken;
 import com.btactic.twofactorauth.trusteddevices.ZetaTrustedDevices;
 import com.zimbra.soap.SoapServlet;
@@ -39,10 +40,19 @@ public class RevokeTrustedDevice extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         Account account = getRequestedAccount(zsc);
         RevokeTrustedDeviceResponse response = new RevokeTrustedDeviceResponse();
-        ZetaTrustedDevices trustedDevicesManager = new ZetaTrustedDevices(account);
+        ZetaTrustedDevices trustedDevicesManager = TwoFactorSession.get(account).getTrustedDevices();
         ZetaTrustedDeviceToken token = ZetaTrustedDeviceToken.fromRequest(account, request, context);
         if (token != null) {
             trustedDevicesManager.revokeTrustedDevice(token);
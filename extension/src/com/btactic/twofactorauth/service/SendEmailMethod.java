@@ -19,37 +19,18 @@
  */
 package com.btactic.twofactorauth.service;
 
-import java.text.DateFormat;
-import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
-
-import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.soap.Element;
-import com.zimbra.common.util.L10nUtil;
-import com.zimbra.common.util.L10nUtil.MsgKey;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AuthToken;
 import com.zimbra.cs.account.AuthToken.Usage;
-import com.zimbra.cs.account.Config;
-import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
-import com.zimbra.cs.mailbox.calendar.Util;
-import com.zimbra.cs.mailbox.Mailbox;
-import com.zimbra.cs.mailbox.MailboxManager;
-import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.service.account.AccountDocumentHandler;
 import com.zimbra.cs.service.AuthProvider;
 import com.zimbra.cs.servlet.util.AuthUtil;
-import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.soap.account.message.SendTwoFactorAuthCodeRequest;
 import com.zimbra.soap.account.message.SendTwoFactorAuthCodeRequest.SendTwoFactorAuthCodeAction;
 import com.zimbra.soap.account.message.SendTwoFactorAuthCodeResponse;
@@ -58,7 +39,10 @@ import com.zimbra.soap.DocumentHandler;
 import com.zimbra.soap.JaxbUtil;
 import com.zimbra.soap.ZimbraSoapContext;
 
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
+import com.btactic.twofactorauth.email.EmailCodeDispatcher;
+import com.btactic.twofactorauth.email.EmailCodeMessage;
 
 import com.zimbra.common.util.ZimbraLog;
 
@@ -82,17 +66,15 @@ public class SendEmailMethod extends TwoFactorAuthMethod {
         boolean emailIsSent = false;
         if (recoveryEmail != null) {
           try {
-            ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(authTokenAcct);
+            ZetaTwoFactorAuth manager = TwoFactorSession.get(authTokenAcct).getTwoFactorAuth();
 
             manager.storeEmailCode();
             String code = manager.getEmailCode();
             long expiryTime = manager.getEmailExpiryTime();
 
-            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(authTokenAcct.getId(), false);
-            OperationContext octxt = new OperationContext(authTokenAcct);
-            sendEmail(code, expiryTime, recoveryEmail, authTokenAcct, mbox, zsc, octxt);
-
-            emailIsSent = true;
+            // The code is stored; the email itself is sent in the background
+            emailIsSent = EmailCodeDispatcher.getInstance().submit(
+                new EmailCodeMessage(authTokenAcct, recoveryEmail, code, expiryTime));
           } catch (ServiceException e) {
             emailIsSent = false;
           }
@@ -108,68 +90,6 @@ public class SendEmailMethod extends TwoFactorAuthMethod {
         }
     }
 
-    // TODO: Move to an Util class as an static method
-    private String getDomainGlobalDefaultValue(Account account, String attribute, MsgKey defaultTranslation, Object... defaultArgs) throws ServiceException {
-
-        String attributeValue;
-
-        Locale locale = account.getLocale();
-
-        Domain domain = account.getProvisioning().getDomain(account);
-        String domainAttribute = domain.getAttr(attribute);
-
-        Config config = Provisioning.getInstance().getConfig(attribute);
-        String globalConfigAttribute = config.getAttr(attribute, null);
-
-        if ( (domainAttribute != null) && (!(domainAttribute.isEmpty())) ) {
-          attributeValue = MessageFormat.format(domainAttribute, defaultArgs);
-        } else if ( (globalConfigAttribute != null) && (!(globalConfigAttribute.isEmpty())) ) {
-          attributeValue = MessageFormat.format(globalConfigAttribute, defaultArgs);
-        } else {
-          attributeValue = L10nUtil.getMessage(defaultTranslation, locale, defaultArgs);
-        }
-        return attributeValue;
-
-    }
-
-    public void sendEmail(String code, long expiryTime, String toEmail, Account account, Mailbox mbox,
-            ZimbraSoapContext zsc, OperationContext octxt) throws ServiceException {
-        // Inspired from sendAndStoreTwoFactorAuthAccountCode function from EmailChannel.java file
-        String ownerAcctDisplayName = account.getDisplayName();
-        if (ownerAcctDisplayName == null) {
-            ownerAcctDisplayName = account.getName();
-        }
-        String charset = account.getAttr(Provisioning.A_zimbraPrefMailDefaultCharset, MimeConstants.P_CHARSET_UTF8);
-        try {
-            DateFormat format = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z");
-            format.setTimeZone(TimeZone.getTimeZone(Util.getAccountTimeZone(account).getID()));
-            String dateTime = format.format(expiryTime);
-            if (ZimbraLog.misc.isDebugEnabled()) {
-                ZimbraLog.misc.debug(
-                        "TwoFactorAuth:SendEmailMethod:SendEmail: Expiry of two-factor auth email address verification code sent to %s: %s",
-                        toEmail, dateTime);
-                ZimbraLog.misc.debug(
-                        "TwoFactorAuth:SendEmailMethod:SendEmail: Last 3 characters of two-factor auth email verification code sent to %s: %s",
-                        toEmail,
-                        code.substring(5));
-            }
-
-            String subject = this.getDomainGlobalDefaultValue(account, "zimbraTwoFactorCodeEmailSubject", MsgKey.twoFactorAuthCodeEmailSubject, ownerAcctDisplayName);
-            String mimePartText = this.getDomainGlobalDefaultValue(account, "zimbraTwoFactorCodeEmailBodyText", MsgKey.twoFactorAuthCodeEmailBodyText, code, dateTime);
-            String mimePartHtml = this.getDomainGlobalDefaultValue(account, "zimbraTwoFactorCodeEmailBodyHtml", MsgKey.twoFactorAuthCodeEmailBodyHtml, code, dateTime);
-
-            MimeMultipart mmp = AccountUtil.generateMimeMultipart(mimePartText, mimePartHtml, null);
-            MimeMessage mm = AccountUtil.generateMimeMessage(account, account, subject, charset, null, null,
-                    toEmail, mmp);
-            mbox.getMailSender().sendMimeMessage(octxt, mbox, false, mm, null, null, null, null, false);
-        } catch (MessagingException e) {
-            ZimbraLog.misc.warn("Failed to send two-factor auth email code to email ID: '"
-                    + toEmail + "'", e);
-            throw ServiceException.FAILURE("Failed to send two-factor auth email code to email ID: "
-                    + toEmail, e);
-        }
-    }
-
     protected SendTwoFactorAuthCodeAction getAction() {
         return SendTwoFactorAuthCodeAction.EMAIL;
     }
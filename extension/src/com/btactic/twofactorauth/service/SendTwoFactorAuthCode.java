@@ -30,6 +30,7 @@ import com.zimbra.soap.account.message.SendTwoFactorAuthCodeRequest.SendTwoFacto
 import com.zimbra.soap.JaxbUtil;
 import com.zimbra.soap.ZimbraSoapContext;
 
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.service.exception.SendTwoFactorAuthCodeException;
 
 public class SendTwoFactorAuthCode extends AccountDocumentHandler {
@@ -47,6 +48,15 @@ public class SendTwoFactorAuthCode extends AccountDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
 
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         SendTwoFactorAuthCodeRequest req = JaxbUtil.elementToJaxb(request);
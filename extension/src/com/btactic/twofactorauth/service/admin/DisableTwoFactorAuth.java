@@ -34,12 +34,22 @@ import com.zimbra.soap.admin.message.DisableTwoFactorAuthResponse;
 import com.zimbra.soap.type.AccountSelector;
 import com.zimbra.cs.service.admin.AdminDocumentHandler;
 
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.ZetaTwoFactorAuth;
 
 public class DisableTwoFactorAuth extends AdminDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         
         DisableTwoFactorAuthRequest req = JaxbUtil.elementToJaxb(request);
@@ -72,7 +82,7 @@ public class DisableTwoFactorAuth extends AdminDocumentHandler {
     private Element handleEmailDisable(ZimbraSoapContext zsc, Account account)
             throws ServiceException {
 
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth();
         DisableTwoFactorAuthResponse response = new DisableTwoFactorAuthResponse();
         manager.disableTwoFactorAuthEmail();
         return zsc.jaxbToElement(response);
@@ -82,7 +92,7 @@ public class DisableTwoFactorAuth extends AdminDocumentHandler {
     private Element handleTwoFactorDisable(ZimbraSoapContext zsc, Account account)
             throws ServiceException {
 
-        ZetaTwoFactorAuth manager = new ZetaTwoFactorAuth(account);
+        ZetaTwoFactorAuth manager = TwoFactorSession.get(account).getTwoFactorAuth();
         DisableTwoFactorAuthResponse response = new DisableTwoFactorAuthResponse();
         manager.disableTwoFactorAuthApp(true);
         return zsc.jaxbToElement(response);
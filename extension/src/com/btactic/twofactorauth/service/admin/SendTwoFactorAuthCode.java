@@ -32,6 +32,7 @@ import com.zimbra.soap.admin.message.SendTwoFactorAuthCodeRequest.SendTwoFactorA
 import com.zimbra.soap.JaxbUtil;
 import com.zimbra.soap.ZimbraSoapContext;
 
+import com.btactic.twofactorauth.TwoFactorSession;
 import com.btactic.twofactorauth.service.exception.SendTwoFactorAuthCodeException;
 
 public class SendTwoFactorAuthCode extends AdminDocumentHandler {
@@ -49,6 +50,15 @@ public class SendTwoFactorAuthCode extends AdminDocumentHandler {
 
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        TwoFactorSession.begin();
+        try {
+            return handleInSession(request, context);
+        } finally {
+            TwoFactorSession.end();
+        }
+    }
+
+    private Element handleInSession(Element request, Map<String, Object> context) throws ServiceException {
 
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         SendTwoFactorAuthCodeRequest req = JaxbUtil.elementToJaxb(request);
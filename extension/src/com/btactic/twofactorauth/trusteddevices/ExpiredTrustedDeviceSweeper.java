@@ -0,0 +1,63 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.trusteddevices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.btactic.twofactorauth.core.ExpiredCredentialSweeper;
+import com.btactic.twofactorauth.core.TrustedDeviceTokenCache;
+
+/**
+ * Removes expired trusted devices in the background, together with values
+ * that cannot be decoded.
+ *
+ * @author BTACTIC
+ */
+public class ExpiredTrustedDeviceSweeper extends ExpiredCredentialSweeper {
+
+    public ExpiredTrustedDeviceSweeper() {
+        super("trusted device", Provisioning.A_zimbraTwoFactorAuthTrustedDevices);
+    }
+
+    @Override
+    protected List<String> getExpiredValues(Account account, long now) throws ServiceException {
+        List<String> expired = new ArrayList<String>();
+        for (String encoded: account.getTwoFactorAuthTrustedDevices()) {
+            try {
+                ZetaTrustedDevice td = new ZetaTrustedDevice(account, encoded);
+                if (td.getExpires() <= now) {
+                    expired.add(encoded);
+                }
+            } catch (ServiceException e) {
+                expired.add(encoded);
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    protected void afterRemoval(Account account, List<String> removed) {
+        TrustedDeviceTokenCache.getInstance().invalidate(ZetaTrustedDevice.getTokenIds(removed));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Maldua Zimbra 2FA Extension
+ * Copyright (C) 2023 BTACTIC, S.C.C.L.
+ *
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2008, 2009, 2010, 2013, 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.btactic.twofactorauth.trusteddevices;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.zimbra.cs.account.TrustedDevice;
+import com.zimbra.cs.account.TrustedDeviceToken;
+import com.zimbra.cs.account.auth.twofactor.TrustedDevices;
+
+/**
+ * Stateless {@link TrustedDevices} for accounts without two-factor
+ * authentication. There is no second factor to skip, so no device is ever
+ * trusted and no trusted-device token is read from the request.
+ *
+ * @author BTACTIC
+ */
+public final class NoOpTrustedDevices implements TrustedDevices {
+
+    private static final NoOpTrustedDevices INSTANCE = new NoOpTrustedDevices();
+
+    private NoOpTrustedDevices() {
+    }
+
+    public static NoOpTrustedDevices getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void clearData() throws ServiceException {
+    }
+
+    @Override
+    public TrustedDeviceToken registerTrustedDevice(Map<String, Object> deviceAttrs) throws ServiceException {
+        return null;
+    }
+
+    @Override
+    public List<TrustedDevice> getTrustedDevices() throws ServiceException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void revokeTrustedDevice(TrustedDeviceToken token) throws ServiceException {
+    }
+
+    @Override
+    public void revokeAllTrustedDevices() throws ServiceException {
+    }
+
+    @Override
+    public void revokeOtherTrustedDevices(TrustedDeviceToken token) throws ServiceException {
+    }
+
+    @Override
+    public void verifyTrustedDevice(TrustedDeviceToken token, Map<String, Object> attrs) throws ServiceException {
+        throw AuthFailedServiceException.AUTH_FAILED("trusted devices are not enabled");
+    }
+
+    @Override
+    public TrustedDeviceToken getTokenFromRequest(Element request, Map<String, Object> context) throws ServiceException {
+        return null;
+    }
+
+    @Override
+    public TrustedDevice getTrustedDeviceByTrustedToken(TrustedDeviceToken token) throws ServiceException {
+        return null;
+    }
+}
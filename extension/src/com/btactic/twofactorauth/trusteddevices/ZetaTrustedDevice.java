@@ -19,16 +19,24 @@
  */
 package com.btactic.twofactorauth.trusteddevices;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.BEncoding;
 import com.zimbra.common.util.BEncoding.BEncodingException;
 import com.zimbra.cs.account.auth.AuthContext;
 import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.TrustedDevice;
 import com.zimbra.cs.account.TrustedDeviceToken;
+import com.btactic.twofactorauth.TwoFactorSession;
+import com.btactic.twofactorauth.core.AttributeChangeSet;
+import com.btactic.twofactorauth.core.CompactRecord;
+import com.btactic.twofactorauth.core.TrustedDeviceTokenCache;
 
 public class ZetaTrustedDevice implements TrustedDevice {
 
@@ -38,8 +46,9 @@ public class ZetaTrustedDevice implements TrustedDevice {
     private Integer trustedTokenId;
     private Long expires;
     private DeviceVerification verification;
+    private String ldapEntry;
 
-    public ZetaTrustedDevice(Account account, Map<String, Object> attrs) {
+    public ZetaTrustedDevice(Account account, Map<String, Object> attrs) throws ServiceException {
         this.account = account;
         this.deviceAttrs = attrs;
         this.token = new ZetaTrustedDeviceToken(account, this);
@@ -49,29 +58,88 @@ public class ZetaTrustedDevice implements TrustedDevice {
     }
 
     public static ZetaTrustedDevice byTrustedToken(Account acct, TrustedDeviceToken token) throws ServiceException {
-        for (String encodedDevice: acct.getTwoFactorAuthTrustedDevices()) {
-            if (encodedDevice.startsWith(String.valueOf(token.getId()))) {
-                return new ZetaTrustedDevice(acct, encodedDevice);
-            }
-        }
-        return null;
+        return TwoFactorSession.get(acct).getTrustedDevices().getTrustedDevice(token.getId());
     }
 
     public ZetaTrustedDevice(Account account, String encoded) throws ServiceException {
         this.account = account;
+        this.ldapEntry = encoded;
+        if (CompactRecord.isCompact(encoded)) {
+            decodeCompact(encoded);
+        } else {
+            decodeLegacy(encoded);
+        }
+        setVerificationMechanism();
+    }
+
+    private void decodeCompact(String encoded) throws ServiceException {
+        CompactRecord.Reader reader = CompactRecord.reader(encoded, CompactRecord.TYPE_TRUSTED_DEVICE);
+        Long tokenId = reader.readLong();
+        expires = reader.readLong();
+        if (tokenId == null || expires == null) {
+            throw ServiceException.FAILURE("cannot decoded trusted device info", null);
+        }
+        trustedTokenId = tokenId.intValue();
+        int count = reader.readCount();
+        deviceAttrs = new HashMap<String, Object>(count * 2);
+        for (int i = 0; i < count; i++) {
+            deviceAttrs.put(reader.readString(), reader.readString());
+        }
+    }
+
+    private void decodeLegacy(String encoded) throws ServiceException {
         String[] parts = encoded.split("\\|", 3);
         if (parts.length != 3) {
             throw ServiceException.FAILURE("cannot decoded trusted device info", new Throwable());
         }
-        expires = Long.valueOf(parts[1]);
-        trustedTokenId = Integer.parseInt(parts[0]);
+        try {
+            expires = Long.valueOf(parts[1]);
+            trustedTokenId = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            throw ServiceException.FAILURE("cannot decoded trusted device info", e);
+        }
         String encodedMap = parts[2];
         try {
             deviceAttrs = BEncoding.decode(encodedMap);
         } catch (BEncodingException e) {
             throw ServiceException.FAILURE("cannot decoded trusted device info", e);
         }
-        setVerificationMechanism();
+    }
+
+    /**
+     * Gets the token id of a stored device without decoding the rest of it.
+     *
+     * @param encoded the stored device value
+     * @return the token id, or null if the value is malformed
+     */
+    public static Integer getTokenId(String encoded) {
+        try {
+            if (CompactRecord.isCompact(encoded)) {
+                Long tokenId = CompactRecord.reader(encoded, CompactRecord.TYPE_TRUSTED_DEVICE).readLong();
+                return tokenId == null ? null : tokenId.intValue();
+            }
+            int pos = encoded.indexOf('|');
+            return pos == -1 ? null : Integer.valueOf(encoded.substring(0, pos));
+        } catch (ServiceException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the token ids of several stored devices, skipping malformed ones.
+     *
+     * @param encoded the stored device values
+     * @return the token ids
+     */
+    public static Set<Integer> getTokenIds(Collection<String> encoded) {
+        Set<Integer> tokenIds = new HashSet<Integer>();
+        for (String device: encoded) {
+            Integer tokenId = getTokenId(device);
+            if (tokenId != null) {
+                tokenIds.add(tokenId);
+            }
+        }
+        return tokenIds;
     }
 
     private void setVerificationMechanism() {
@@ -83,15 +151,57 @@ public class ZetaTrustedDevice implements TrustedDevice {
     }
 
     private String encode() {
+        if (CompactRecord.isWriteEnabled() && hasOnlyStringAttrs()) {
+            CompactRecord.Writer writer = CompactRecord.writer(CompactRecord.TYPE_TRUSTED_DEVICE)
+                .writeLong(trustedTokenId.longValue())
+                .writeLong(expires)
+                .writeCount(deviceAttrs.size());
+            for (Map.Entry<String, Object> attr: deviceAttrs.entrySet()) {
+                writer.writeString(attr.getKey()).writeString((String) attr.getValue());
+            }
+            return writer.encode();
+        }
         return String.format("%d|%d|%s", trustedTokenId, expires, BEncoding.encode(deviceAttrs));
     }
 
+    private boolean hasOnlyStringAttrs() {
+        for (Map.Entry<String, Object> attr: deviceAttrs.entrySet()) {
+            if (attr.getKey() == null || !(attr.getValue() instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void register() throws ServiceException {
-        account.addTwoFactorAuthTrustedDevices(encode());
+        ldapEntry = encode();
+        account.addTwoFactorAuthTrustedDevices(ldapEntry);
+    }
+
+    /**
+     * Queues the registration of this device in a change set, so it can be
+     * written together with other changes.
+     *
+     * @param changes the change set to add the device to
+     */
+    void register(AttributeChangeSet changes) {
+        ldapEntry = encode();
+        changes.add(Provisioning.A_zimbraTwoFactorAuthTrustedDevices, ldapEntry);
     }
 
     public void revoke() throws ServiceException {
-        account.removeTwoFactorAuthTrustedDevices(encode());
+        account.removeTwoFactorAuthTrustedDevices(getLdapEntry());
+        TrustedDeviceTokenCache.getInstance().invalidate(trustedTokenId);
+    }
+
+    /**
+     * Gets the value this device is stored as, exactly as read from LDAP
+     * when the device was decoded from it.
+     *
+     * @return the stored device value
+     */
+    String getLdapEntry() {
+        return ldapEntry != null ? ldapEntry : encode();
     }
 
     public boolean verify(Map<String, Object> attrs) {
@@ -39,6 +39,8 @@ import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.account.TrustedTokenKey;
 import com.zimbra.cs.account.TokenUtil;
 import com.zimbra.cs.account.TrustedDeviceToken;
+import com.btactic.twofactorauth.core.TokenHmac;
+import com.btactic.twofactorauth.core.TrustedDeviceTokenCache;
 
 public class ZetaTrustedDeviceToken implements TrustedDeviceToken {
     private Integer tokenId;
@@ -58,6 +60,12 @@ public class ZetaTrustedDeviceToken implements TrustedDeviceToken {
     }
 
     private void decode(String encoded) throws AuthTokenException, ServiceException {
+        TrustedDeviceTokenCache verified = TrustedDeviceTokenCache.getInstance();
+        Integer cachedId = verified.get(encoded);
+        if (cachedId != null) {
+            tokenId = cachedId;
+            return;
+        }
         int pos = encoded.indexOf('_');
         if (pos == -1) {
             throw new AuthTokenException("invalid trusted device token format");
@@ -75,12 +83,13 @@ public class ZetaTrustedDeviceToken implements TrustedDeviceToken {
         if (key == null) {
             throw new AuthTokenException("unknown key version");
         }
-        String computedHmac = TokenUtil.getHmac(data, key.getKey());
+        String computedHmac = TokenHmac.getHmac(data, key.getKey());
         if (!computedHmac.equals(hmac)) {
             throw new AuthTokenException("hmac failure");
         }
         Map<?, ?> map = TokenUtil.getAttrs(data);
         tokenId = Integer.parseInt((String) map.get(TOKEN_ID));
+        verified.put(encoded, tokenId);
     }
 
     public void setExpires(long expires) {
@@ -92,7 +101,7 @@ public class ZetaTrustedDeviceToken implements TrustedDeviceToken {
         BlobMetaData.encodeMetaData(TOKEN_ID, tokenId, sb);
         String data = new String(Hex.encodeHex(sb.toString().getBytes()));
         TrustedTokenKey key = TrustedTokenKey.getCurrentKey();
-        String hmac = TokenUtil.getHmac(data, key.getKey());
+        String hmac = TokenHmac.getHmac(data, key.getKey());
         return key.getVersion() + "_" + hmac + "_" + data;
     }
 
@@ -130,7 +139,7 @@ public class ZetaTrustedDeviceToken implements TrustedDeviceToken {
                     return token;
                 } else {
                     if (device.isExpired()) {
-                        device.revoke();
+                        // Left for the expiry sweeper, only the cookie is cleared
                         token.setDelete();
                         return token;
                     } else {
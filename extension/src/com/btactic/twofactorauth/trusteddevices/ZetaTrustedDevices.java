@@ -20,8 +20,14 @@
 package com.btactic.twofactorauth.trusteddevices;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -30,11 +36,15 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.ZimbraCookie;
 import com.zimbra.cs.account.Account;
-import com.zimbra.cs.account.AccountServiceException;
 import com.zimbra.cs.account.AccountServiceException.AuthFailedServiceException;
+import com.btactic.twofactorauth.core.AttributeChangeSet;
 import com.btactic.twofactorauth.core.BaseTwoFactorAuthComponent;
+import com.btactic.twofactorauth.core.TrustedDeviceTokenCache;
+import com.btactic.twofactorauth.core.TwoFactorAuthConstants;
+import com.btactic.twofactorauth.core.TwoFactorAuthLocalConfig;
 import com.btactic.twofactorauth.core.TwoFactorAuthUtils;
 import com.zimbra.cs.account.AuthTokenException;
+import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.TrustedDevice;
 import com.zimbra.cs.account.TrustedDeviceToken;
 import com.zimbra.common.soap.AccountConstants;
@@ -50,6 +60,14 @@ import com.zimbra.soap.SoapServlet;
  */
 public class ZetaTrustedDevices extends BaseTwoFactorAuthComponent implements TrustedDevices {
 
+    private static final int MAX_DEVICES = TwoFactorAuthLocalConfig.getInt(
+        TwoFactorAuthConstants.LC_MAX_TRUSTED_DEVICES,
+        TwoFactorAuthConstants.DEFAULT_MAX_TRUSTED_DEVICES);
+
+    // Devices by token id, built from the stored values in indexedDevices
+    private String[] indexedDevices;
+    private Map<Integer, ZetaTrustedDevice> devicesByTokenId;
+
     public ZetaTrustedDevices(Account account) throws ServiceException {
         this(account, account.getName());
     }
@@ -72,35 +90,126 @@ public class ZetaTrustedDevices extends BaseTwoFactorAuthComponent implements Tr
         }
         ZetaTrustedDevice td = new ZetaTrustedDevice(account, deviceAttrs);
         ZimbraLog.account.debug("registering new trusted device");
-        td.register();
+        List<String> evicted = getDevicesToEvict();
+        AttributeChangeSet changes = new AttributeChangeSet()
+            .remove(Provisioning.A_zimbraTwoFactorAuthTrustedDevices, evicted);
+        td.register(changes);
+        changes.apply(account);
+        if (!evicted.isEmpty()) {
+            ZimbraLog.account.info("evicted %d trusted devices to stay within %d", evicted.size(), MAX_DEVICES);
+            TrustedDeviceTokenCache.getInstance().invalidate(ZetaTrustedDevice.getTokenIds(evicted));
+        }
         return td.getToken();
     }
 
-    @Override
-    public List<TrustedDevice> getTrustedDevices() throws ServiceException {
-        List<TrustedDevice> trustedDevices = new ArrayList<TrustedDevice>();
-        for (String encoded: account.getTwoFactorAuthTrustedDevices()) {
-            try {
-                ZetaTrustedDevice td = new ZetaTrustedDevice(account, encoded);
-                if (td.isExpired()) {
-                    td.revoke();
+    /**
+     * Picks the stored devices to remove so that one more device fits within
+     * {@code twofactorauth_max_trusted_devices}. Values that cannot be
+     * decoded go first, then expired ones, then the devices
+     * closest to expiring, which are the least recently trusted.
+     *
+     * @return the stored values to remove, possibly empty
+     */
+    private List<String> getDevicesToEvict() {
+        String[] stored = account.getTwoFactorAuthTrustedDevices();
+        int excess = stored.length + 1 - MAX_DEVICES;
+        if (MAX_DEVICES <= 0 || excess <= 0) {
+            return Collections.emptyList();
+        }
+        Map<Integer, ZetaTrustedDevice> devices = devices();
+        Set<String> decoded = new HashSet<String>();
+        List<ZetaTrustedDevice> live = new ArrayList<ZetaTrustedDevice>();
+        List<String> evicted = new ArrayList<String>();
+        for (ZetaTrustedDevice td: devices.values()) {
+            decoded.add(td.getLdapEntry());
+            if (td.isExpired()) {
+                evicted.add(td.getLdapEntry());
+            } else {
+                live.add(td);
+            }
+        }
+        for (String encoded: stored) {
+            // Undecodable values and duplicate token ids are not in the index
+            if (!decoded.contains(encoded)) {
+                evicted.add(0, encoded);
+            }
+        }
+        if (evicted.size() < excess) {
+            Collections.sort(live, new Comparator<ZetaTrustedDevice>() {
+                @Override
+                public int compare(ZetaTrustedDevice a, ZetaTrustedDevice b) {
+                    return Long.compare(a.getExpires(), b.getExpires());
                 }
+            });
+            for (int i = 0; i < live.size() && evicted.size() < excess; i++) {
+                evicted.add(live.get(i).getLdapEntry());
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Gets the index of stored devices by token id, rebuilding it only when
+     * the stored values changed since it was built.
+     *
+     * @return the devices keyed by token id, in stored order
+     */
+    private Map<Integer, ZetaTrustedDevice> devices() {
+        String[] stored = account.getTwoFactorAuthTrustedDevices();
+        if (devicesByTokenId == null || !Arrays.equals(indexedDevices, stored)) {
+            Map<Integer, ZetaTrustedDevice> byTokenId = new LinkedHashMap<Integer, ZetaTrustedDevice>();
+            for (String encoded: stored) {
+                try {
+                    ZetaTrustedDevice td = new ZetaTrustedDevice(account, encoded);
+                    if (!byTokenId.containsKey(td.getTokenId())) {
+                        byTokenId.put(td.getTokenId(), td);
+                    }
+                } catch (ServiceException e) {
+                    ZimbraLog.account.error(e.getMessage());
+                }
+            }
+            indexedDevices = stored;
+            devicesByTokenId = byTokenId;
+        }
+        return devicesByTokenId;
+    }
+
+    /**
+     * Gets the device registered for a trusted token id.
+     *
+     * @param tokenId the id of the trusted device token
+     * @return the device, or null if no device has this exact token id
+     */
+    public ZetaTrustedDevice getTrustedDevice(Integer tokenId) {
+        return tokenId == null ? null : devices().get(tokenId);
+    }
+
+    /**
+     * Lists the stored devices that are still trusted. Expired devices and
+     * undecodable values are skipped here and removed from LDAP by {@link ExpiredTrustedDeviceSweeper}.
+     *
+     * @return the unexpired devices
+     */
+    public List<ZetaTrustedDevice> listTrustedDevices() {
+        List<ZetaTrustedDevice> trustedDevices = new ArrayList<ZetaTrustedDevice>();
+        for (ZetaTrustedDevice td: devices().values()) {
+            if (!td.isExpired()) {
                 trustedDevices.add(td);
-            } catch (ServiceException e) {
-                ZimbraLog.account.error(e.getMessage());
-                account.removeTwoFactorAuthTrustedDevices(encoded);
             }
         }
         return trustedDevices;
     }
 
+    @Override
+    public List<TrustedDevice> getTrustedDevices() throws ServiceException {
+        return new ArrayList<TrustedDevice>(listTrustedDevices());
+    }
+
     @Override
     public void revokeTrustedDevice(TrustedDeviceToken token) throws ServiceException {
         ZimbraLog.account.debug("revoking current trusted device");
-        ZetaTrustedDevice td;
-        try {
-            td = ZetaTrustedDevice.byTrustedToken(account, token);
-        } catch (AccountServiceException e) {
+        ZetaTrustedDevice td = getTrustedDevice(token.getId());
+        if (td == null) {
             ZimbraLog.account.warn("trying to revoke a trusted auth token with no corresponding device");
             return;
         }
@@ -110,9 +219,11 @@ public class ZetaTrustedDevices extends BaseTwoFactorAuthComponent implements Tr
     @Override
     public void revokeAllTrustedDevices() throws ServiceException {
         ZimbraLog.account.debug("revoking all trusted devices");
-        for (TrustedDevice td: getTrustedDevices()) {
-            td.revoke();
-        }
+        List<String> devices = Arrays.asList(account.getTwoFactorAuthTrustedDevices());
+        new AttributeChangeSet()
+            .remove(Provisioning.A_zimbraTwoFactorAuthTrustedDevices, devices)
+            .apply(account);
+        TrustedDeviceTokenCache.getInstance().invalidate(ZetaTrustedDevice.getTokenIds(devices));
     }
 
     @Override
@@ -121,18 +232,24 @@ public class ZetaTrustedDevices extends BaseTwoFactorAuthComponent implements Tr
             revokeAllTrustedDevices();
         } else {
             ZimbraLog.account.debug("revoking other trusted devices");
-            for (TrustedDevice td: getTrustedDevices()) {
-                if (!td.getTokenId().equals(token.getId())) {
-                    td.revoke();
+            Integer keep = token.getId();
+            List<String> others = new ArrayList<String>();
+            for (String encoded: account.getTwoFactorAuthTrustedDevices()) {
+                if (!keep.equals(ZetaTrustedDevice.getTokenId(encoded))) {
+                    others.add(encoded);
                 }
             }
+            new AttributeChangeSet()
+                .remove(Provisioning.A_zimbraTwoFactorAuthTrustedDevices, others)
+                .apply(account);
+            TrustedDeviceTokenCache.getInstance().invalidate(ZetaTrustedDevice.getTokenIds(others));
         }
     }
 
     @Override
     public void verifyTrustedDevice(TrustedDeviceToken token, Map<String, Object> attrs) throws ServiceException {
         ZimbraLog.account.debug("verifying trusted device");
-        ZetaTrustedDevice td = ZetaTrustedDevice.byTrustedToken(account, token);
+        ZetaTrustedDevice td = getTrustedDevice(token.getId());
         if (td == null || !td.verify(attrs)) {
             throw AuthFailedServiceException.TWO_FACTOR_AUTH_FAILED(account.getName(), acctNamePassedIn, "trusted device cannot be verified");
         }
@@ -168,14 +285,14 @@ public class ZetaTrustedDevices extends BaseTwoFactorAuthComponent implements Tr
             try {
                 ZetaTrustedDeviceToken token = new ZetaTrustedDeviceToken(encodedToken);
                 // we want to catch tokens that don't have corresponding devices early
-                ZetaTrustedDevice device = ZetaTrustedDevice.byTrustedToken(account, token);
+                ZetaTrustedDevice device = getTrustedDevice(token.getId());
                 if (device == null) {
                     ZimbraLog.account.debug("cannot find trusted device for trusted device token");
                     token.setDelete();
                     return token;
                 } else {
                     if (device.isExpired()) {
-                        device.revoke();
+                        // Left for the expiry sweeper, only the cookie is cleared
                         token.setDelete();
                         return token;
                     } else {
@@ -194,12 +311,7 @@ public class ZetaTrustedDevices extends BaseTwoFactorAuthComponent implements Tr
 
     @Override
     public TrustedDevice getTrustedDeviceByTrustedToken(TrustedDeviceToken token) throws ServiceException {
-        for (String encodedDevice: account.getTwoFactorAuthTrustedDevices()) {
-            if (encodedDevice.startsWith(String.valueOf(token.getId()))) {
-                return new ZetaTrustedDevice(account, encodedDevice);
-            }
-        }
-        return null;
+        return getTrustedDevice(token.getId());
     }
 
 }